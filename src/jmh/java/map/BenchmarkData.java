@@ -0,0 +1,55 @@
+package map;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic inputs of the benchmarks, generated from a fixed seed so that
+ * every run measures the same data
+ */
+class BenchmarkData {
+
+  private static final long SEED = 42;
+
+  // Utility class
+  private BenchmarkData() {}
+
+  /**
+   * Build the body of a supplier message: "lat,lon,level" lines over the UK
+   *
+   * @param lines Number of cells
+   * @return the body
+   */
+  static String heatmapBody(int lines) {
+    Random random = new Random(SEED);
+    StringBuilder body = new StringBuilder(lines * 24);
+    for (int i = 0; i < lines; i++) {
+      body.append(String.format(Locale.ROOT, "%.6f,%.6f,%d\n",
+                                50 + random.nextDouble() * 8, -6 + random.nextDouble() * 8, random.nextInt(4)));
+    }
+    return body.toString();
+  }
+
+  /**
+   * Build the content of a locations file: "HH:mm:ss,vehicle,lat,lon" lines,
+   * a few vehicles reporting every second
+   *
+   * @param rows Number of lines
+   * @param vehicles Number of distinct vehicles
+   * @return the content
+   */
+  static String locations(int rows, int vehicles) {
+    Random random = new Random(SEED);
+    StringBuilder content = new StringBuilder(rows * 40);
+    int second = 8 * 3600;
+    for (int i = 0; i < rows; i++) {
+      if (random.nextInt(4) == 0) {
+        second++;
+      }
+      content.append(String.format(Locale.ROOT, "%02d:%02d:%02d,V%04d,%.6f,%.6f\n",
+                                   second / 3600 % 24, second / 60 % 60, second % 60, random.nextInt(vehicles),
+                                   50 + random.nextDouble() * 8, -6 + random.nextDouble() * 8));
+    }
+    return content.toString();
+  }
+}
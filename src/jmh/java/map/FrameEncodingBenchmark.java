@@ -0,0 +1,89 @@
+package map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding what is sent to a client: one heatmap message and one window of
+ * vehicle locations
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodingBenchmark {
+
+  private static final int CELLS = 1000;
+  private static final int VEHICLES = 100;
+
+  private String[] cellLines;
+  private HeatmapBatch cells;
+  private String[] names;
+  private String[] lats;
+  private String[] lons;
+  private int[] ids;
+  private int[] fixedLats;
+  private int[] fixedLons;
+
+  @Setup
+  public void setUp() {
+    String body = BenchmarkData.heatmapBody(CELLS);
+    cellLines = body.split("\n");
+    cells = HeatmapBatch.parse(body);
+    String[] locations = BenchmarkData.locations(VEHICLES, VEHICLES).split("\n");
+    names = new String[VEHICLES];
+    lats = new String[VEHICLES];
+    lons = new String[VEHICLES];
+    ids = new int[VEHICLES];
+    fixedLats = new int[VEHICLES];
+    fixedLons = new int[VEHICLES];
+    for (int i = 0; i < VEHICLES; i++) {
+      String[] fields = locations[i].split(",");
+      names[i] = fields[1];
+      lats[i] = fields[2];
+      lons[i] = fields[3];
+      ids[i] = i;
+      fixedLats[i] = Frames.toFixed(Double.parseDouble(fields[2]));
+      fixedLons[i] = Frames.toFixed(Double.parseDouble(fields[3]));
+    }
+  }
+
+  // Baseline: the original "m1," + line and getBytes(), one message per cell
+  @Benchmark
+  public void heatmapStrings(Blackhole blackhole) {
+    for (String line : cellLines) {
+      blackhole.consume(("m1," + line).getBytes());
+    }
+  }
+
+  @Benchmark
+  public byte[] heatmapFrame() {
+    return Frames.heatmap(cells);
+  }
+
+  // Baseline: the original "m2," + vehicle + "," + lat + "," + lon and getBytes(), one message per vehicle
+  @Benchmark
+  public void vehicleStrings(Blackhole blackhole) {
+    for (int i = 0; i < VEHICLES; i++) {
+      blackhole.consume(("m2," + names[i] + "," + lats[i] + "," + lons[i]).getBytes());
+    }
+  }
+
+  @Benchmark
+  public byte[] vehicleFrame() {
+    return Frames.vehicles(ids, fixedLats, fixedLons, 0, VEHICLES);
+  }
+}
@@ -0,0 +1,86 @@
+package map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Splitting a supplier message into heatmap cells (Lab 1, once per message)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeatmapParseBenchmark {
+
+  @Param({"1000", "20000"})
+  public int lines;
+
+  private String body;
+
+  @Setup
+  public void setUp() {
+    body = BenchmarkData.heatmapBody(lines);
+  }
+
+  // Baseline: the original Pattern.compile("\n")::splitAsStream into one String per line
+  @Benchmark
+  public void splitAsStream(Blackhole blackhole) {
+    Pattern.compile("\n").splitAsStream(body).forEach(blackhole::consume);
+  }
+
+  // Baseline: the previous parser, one substring and Double.parseDouble per field
+  @Benchmark
+  public HeatmapBatch substringParse() {
+    HeatmapBatch batch = new HeatmapBatch(Math.max(16, body.length() / 24));
+    int start = 0;
+    while (start < body.length()) {
+      int end = body.indexOf('\n', start);
+      if (end < 0) {
+        end = body.length();
+      }
+      int comma1 = body.indexOf(',', start);
+      int comma2 = comma1 < 0 ? -1 : body.indexOf(',', comma1 + 1);
+      if (comma1 >= 0 && comma2 >= 0 && comma2 < end) {
+        try {
+          batch.add(Frames.toFixed(Double.parseDouble(body.substring(start, comma1))),
+                    Frames.toFixed(Double.parseDouble(body.substring(comma1 + 1, comma2))),
+                    Byte.parseByte(body.substring(comma2 + 1, end).trim()));
+        } catch (NumberFormatException e) {
+          // skip malformed line
+        }
+      }
+      start = end + 1;
+    }
+    return batch;
+  }
+
+  @Benchmark
+  public HeatmapBatch parse() {
+    return HeatmapBatch.parse(body);
+  }
+
+  // The scanner alone: cells handed over, not stored
+  @Benchmark
+  public int scan(Blackhole blackhole) {
+    return HeatmapParser.parse(body, (lat, lon, level) -> {
+      blackhole.consume(lat);
+      blackhole.consume(lon);
+      blackhole.consume(level);
+    });
+  }
+}
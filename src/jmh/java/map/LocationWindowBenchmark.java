@@ -0,0 +1,74 @@
+package map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cutting the locations file into time windows (Lab 2)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocationWindowBenchmark {
+
+  private static final int ROWS = 20000;
+  private static final int REFRESH_MINUTES = 2;
+
+  private String[] lines;
+  private ByteBuffer file;
+
+  @Setup
+  public void setUp() {
+    String content = BenchmarkData.locations(ROWS, 300);
+    lines = content.split("\n");
+    file = ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  // Baseline: the original windowUntil predicate, split(",") and LocalTime.parse on every line
+  @Benchmark
+  public int splitAndLocalTime() {
+    int windows = 0;
+    String delimiter = "";
+    for (String line : lines) {
+      String time = line.split(",")[0];
+      if (delimiter.isEmpty()) {
+        delimiter = time;
+      } else if (!LocalTime.parse(time).isBefore(LocalTime.parse(delimiter).plusMinutes(REFRESH_MINUTES))) {
+        delimiter = time;
+        windows++;
+      }
+    }
+    return windows;
+  }
+
+  @Benchmark
+  public int scan() {
+    int[] window = {-1, 0};
+    LocationsLoader.scan(file, 0, file.limit(), (buffer, line, time, vehicleFrom, vehicleTo, lat, lon) -> {
+      if (window[0] < 0) {
+        window[0] = time;
+      } else if (time >= window[0] + REFRESH_MINUTES * 60) {
+        window[0] = time;
+        window[1]++;
+      }
+      return true;
+    });
+    return window[1];
+  }
+}
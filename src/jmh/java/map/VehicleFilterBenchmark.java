@@ -0,0 +1,80 @@
+package map;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeping the locations of the first N vehicles of the file (Lab 2)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VehicleFilterBenchmark {
+
+  private static final int ROWS = 20000;
+
+  @Param({"10", "100"})
+  public int maxVehicles;
+
+  private String[] lines;
+  private ByteBuffer file;
+
+  @Setup
+  public void setUp() {
+    String content = BenchmarkData.locations(ROWS, 300);
+    lines = content.split("\n");
+    file = ByteBuffer.wrap(content.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  // Baseline: the original split(",")[1] and ArrayList.contains, twice per line
+  @Benchmark
+  public int arrayListContains() {
+    List<String> vehicles = new ArrayList<>(maxVehicles);
+    int kept = 0;
+    for (String line : lines) {
+      String vehicle = line.split(",")[1];
+      if (vehicles.size() < maxVehicles && !vehicles.contains(vehicle)) {
+        vehicles.add(vehicle);
+      }
+      if (vehicles.contains(line.split(",")[1])) {
+        kept++;
+      }
+    }
+    return kept;
+  }
+
+  @Benchmark
+  public int interner() {
+    LocationsLoader.ByteInterner interner = new LocationsLoader.ByteInterner();
+    int[] kept = {0};
+    LocationsLoader.scan(file, 0, file.limit(), (buffer, line, time, vehicleFrom, vehicleTo, lat, lon) -> {
+      int id = interner.find(buffer, vehicleFrom, vehicleTo);
+      if (id < 0 && interner.size() < maxVehicles) {
+        id = interner.intern(buffer, vehicleFrom, vehicleTo);
+      }
+      if (id >= 0) {
+        kept[0]++;
+      }
+      return true;
+    });
+    return kept[0];
+  }
+}
@@ -0,0 +1,298 @@
+package map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.util.ReferenceCountUtil;
+
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One simulated browser connected to /lab, decoding the frame headers (see
+ * Frames). It never sends a viewport, so it is sent the whole map: every
+ * client is sent the same live frames, told apart by their content. A
+ * frame received by a few clients only was merged by the server from the
+ * frames they missed.
+ * A frame's lag is the time between the first client receiving it and
+ * this client receiving it. A client is only expected to be delivered
+ * the live frames first received well after its latest snapshot or
+ * vehicle names: the earlier ones may be merged into them.
+ *
+ * Kinds of client:
+ *  - NORMAL: reads its socket as fast as it can;
+ *  - SLOW: reads its socket once every LOADTEST_SLOW_DELAY_MS;
+ *  - STALLED: stops reading its socket after its first frames, letting
+ *    the server's writes pile up (TCP backpressure).
+ */
+class LoadClient extends ChannelInboundHandlerAdapter {
+
+  enum Kind { NORMAL, SLOW, STALLED }
+
+  // Frames a stalled client reads before it stops
+  static final int STALL_AFTER = 3;
+
+  // Live frames received, by frame key
+  static final ConcurrentHashMap<Long, Arrival> ARRIVALS = new ConcurrentHashMap<>();
+
+  private final Kind kind;
+  private final long slowDelayMillis;
+  // Lag of the live frames received, shared by the clients of the same kind
+  private final Recorder lags;
+  // First arrivals counted in the current step: [from, to) in nanoseconds
+  private final Step step;
+
+  private volatile Channel channel;
+  private volatile boolean connected;
+  private volatile boolean closed;
+  // Frames received, by type
+  private final AtomicLongArray frames = new AtomicLongArray(Frames.TILES + 1);
+  private final AtomicLong bytes = new AtomicLong();
+  // Live frames first received in the step's window, and this client's worst lag in the step
+  private final List<Arrival> delivered = new ArrayList<>();
+  private final AtomicLong worstLag = new AtomicLong();
+  // Heatmap snapshots received after the first one: the server lost track of the client
+  private final AtomicLong resyncs = new AtomicLong();
+  // When the client was last brought up to date: the live frames first received
+  // before then may have been merged into its introduction
+  private volatile long syncedAt = Long.MIN_VALUE;
+  // Read by the event loop only
+  private int received;
+  private boolean snapshotReceived;
+  // Vehicle frames of the introduction still to come
+  private int introVehicles;
+
+  /**
+   * A live frame, as received by the clients
+   */
+  static class Arrival {
+    // Time the frame was first received by a client
+    final long first;
+    final AtomicInteger clients = new AtomicInteger();
+
+    Arrival(long first) {
+      this.first = first;
+    }
+  }
+
+  /**
+   * Window of the current step, shared by every client
+   */
+  static class Step {
+    volatile long from = Long.MAX_VALUE;
+    volatile long to = Long.MAX_VALUE;
+    // Time the other clients may take to receive what a client was brought up to date with
+    final long grace;
+
+    Step(long grace) {
+      this.grace = grace;
+    }
+
+    /**
+     * Check whether a live frame counts in the step for a client
+     *
+     * @param firstArrival Time the frame was first received by a client
+     * @param syncedAt Time the client was last brought up to date
+     * @return true if the client is expected to be delivered the frame
+     */
+    boolean expects(long firstArrival, long syncedAt) {
+      return firstArrival >= from && firstArrival < to && firstArrival >= syncedAt + grace;
+    }
+  }
+
+  /**
+   * Create a client
+   *
+   * @param kind How the client reads its socket
+   * @param slowDelayMillis Time between two reads of a SLOW client
+   * @param lags Recorder of the live frames' lag, in microseconds
+   * @param step Window of the current step
+   */
+  LoadClient(Kind kind, long slowDelayMillis, Recorder lags, Step step) {
+    this.kind = kind;
+    this.slowDelayMillis = slowDelayMillis;
+    this.lags = lags;
+    this.step = step;
+  }
+
+  @Override
+  public void channelActive(ChannelHandlerContext ctx) throws Exception {
+    channel = ctx.channel();
+    super.channelActive(ctx);
+  }
+
+  @Override
+  public void userEventTriggered(ChannelHandlerContext ctx, Object event) throws Exception {
+    if (event == WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE) {
+      connected = true;
+      if (kind == Kind.SLOW) {
+        ctx.channel().config().setAutoRead(false);
+        scheduleRead(ctx);
+      }
+    }
+    super.userEventTriggered(ctx, event);
+  }
+
+  @Override
+  public void channelRead(ChannelHandlerContext ctx, Object msg) {
+    try {
+      if (msg instanceof BinaryWebSocketFrame) {
+        received(((BinaryWebSocketFrame) msg).content());
+      }
+    } finally {
+      ReferenceCountUtil.release(msg);
+    }
+    if (kind == Kind.STALLED && received >= STALL_AFTER) {
+      ctx.channel().config().setAutoRead(false);
+    }
+  }
+
+  @Override
+  public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+    closed = true;
+    super.channelInactive(ctx);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+    System.out.println("Load test client error: " + cause);
+    ctx.close();
+  }
+
+  // Read whatever the socket holds, then wait before reading again
+  private void scheduleRead(ChannelHandlerContext ctx) {
+    ctx.executor().schedule(() -> {
+      if (ctx.channel().isActive()) {
+        ctx.read();
+        scheduleRead(ctx);
+      }
+    }, slowDelayMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private void received(ByteBuf frame) {
+    long now = System.nanoTime();
+    received++;
+    bytes.addAndGet(frame.readableBytes());
+    if (frame.readableBytes() < Frames.HEADER_SIZE) {
+      return;
+    }
+    int index = frame.readerIndex();
+    byte type = frame.getByte(index);
+    int flags = frame.getByte(index + 1);
+    if (type >= 0 && type < frames.length()) {
+      frames.incrementAndGet(type);
+    }
+    // Introduction, not live: the map key, the latest heatmap, the vehicle
+    // names followed by where they are and the last window played
+    if (type == Frames.MAP_KEY) {
+      return;
+    }
+    if ((flags & Frames.SNAPSHOT) != 0) {
+      if (snapshotReceived) {
+        resyncs.incrementAndGet();
+      }
+      snapshotReceived = true;
+      syncedAt = now;
+      return;
+    }
+    if (type == Frames.VEHICLE_NAMES) {
+      introVehicles = 2;
+      syncedAt = now;
+      return;
+    }
+    if (type == Frames.VEHICLES && introVehicles > 0) {
+      introVehicles--;
+      return;
+    }
+    long key = ((long) ByteBufUtil.hashCode(frame) << 32) | frame.readableBytes();
+    Arrival arrival = ARRIVALS.computeIfAbsent(key, k -> new Arrival(now));
+    arrival.clients.incrementAndGet();
+    long lag = TimeUnit.NANOSECONDS.toMicros(now - arrival.first);
+    lags.recordValue(lag);
+    if (step.expects(arrival.first, syncedAt)) {
+      synchronized (delivered) {
+        delivered.add(arrival);
+      }
+    }
+    worstLag.accumulateAndGet(lag, Math::max);
+  }
+
+  Kind kind() {
+    return kind;
+  }
+
+  Channel channel() {
+    return channel;
+  }
+
+  boolean connected() {
+    return connected;
+  }
+
+  boolean closed() {
+    return closed;
+  }
+
+  long frames(int type) {
+    return frames.get(type);
+  }
+
+  long bytes() {
+    return bytes.get();
+  }
+
+  long syncedAt() {
+    return syncedAt;
+  }
+
+  /**
+   * Check whether the client was introduced: sent a heatmap snapshot or the vehicle names
+   *
+   * @return true once introduced
+   */
+  boolean synced() {
+    return syncedAt != Long.MIN_VALUE;
+  }
+
+  /**
+   * Get the heatmap resyncs since the last call
+   *
+   * @return the number of resyncs
+   */
+  long takeResyncs() {
+    return resyncs.getAndSet(0);
+  }
+
+  /**
+   * Get the live frames first received in the step's window, and start counting again
+   *
+   * @return the frames
+   */
+  List<Arrival> takeDelivered() {
+    synchronized (delivered) {
+      List<Arrival> taken = new ArrayList<>(delivered);
+      delivered.clear();
+      return taken;
+    }
+  }
+
+  /**
+   * Get the client's worst lag since the last call
+   *
+   * @return the lag in microseconds
+   */
+  long takeWorstLag() {
+    return worstLag.getAndSet(0);
+  }
+}
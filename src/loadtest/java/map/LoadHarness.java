@@ -0,0 +1,460 @@
+package map;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import qm.QueueManager;
+import qm.Settings;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/************************************************************************\
+ * WebSocket load test: starts the application in-process and connects
+ * simulated clients (LoadClient) to /lab in steps of LOADTEST_STEP_CLIENTS,
+ * up to LOADTEST_CLIENTS. After each step's clients are connected and
+ * introduced, it measures for LOADTEST_STEP_SECONDS:
+ *  - the frames delivered per second, by type;
+ *  - the lag distribution of the live frames (behind the first client to
+ *    receive them), over the frames and over the clients' worst lags;
+ *  - the share of the live frames the normal clients were delivered, and
+ *    how many times the server had to resync them with a heatmap snapshot;
+ *  - the heap and threads of the server (the clients' event loops excluded)
+ *    and the server's own meters: frames sent and dropped, fan-out latency.
+ * A step is degraded when its normal clients' p99 lag exceeds
+ * LOADTEST_LAG_LIMIT_MS, they miss live frames (delivery below
+ * LOADTEST_MIN_DELIVERY) or get resynced, or clients fail to connect or
+ * get disconnected, or the live frames stop for longer than a burst
+ * interval of the heatmap generator (stall).
+ * The ramp stops at the first degraded step.
+ *
+ * The arguments are the application's (default: 1). Queues and topics are
+ * in-memory and the heatmap generator never stops unless set otherwise
+ * (QM_TRANSPORT, HEATMAP_BURSTS). The results are written as JSON to
+ * LOADTEST_REPORT.
+ *
+ * Run with: ./gradlew loadTest [-PloadArgs=<lab>,<vehicles>,<refresh>,<file>]
+\************************************************************************/
+public class LoadHarness {
+
+  private static final int CLIENTS = Settings.getInt("LOADTEST_CLIENTS", 2000);
+  private static final int STEP_CLIENTS = Math.max(1, Settings.getInt("LOADTEST_STEP_CLIENTS", 250));
+  private static final int STEP_SECONDS = Math.max(1, Settings.getInt("LOADTEST_STEP_SECONDS", 20));
+  private static final int CONNECT_TIMEOUT_SECONDS = Settings.getInt("LOADTEST_CONNECT_TIMEOUT_SECONDS", 30);
+  private static final double SLOW_RATIO = Settings.getDouble("LOADTEST_SLOW_RATIO", 0.05);
+  private static final double STALLED_RATIO = Settings.getDouble("LOADTEST_STALLED_RATIO", 0.01);
+  private static final int SLOW_DELAY_MS = Math.max(1, Settings.getInt("LOADTEST_SLOW_DELAY_MS", 500));
+  // Receive buffer of the stalled clients: the server's writes back up after this much, not after the OS's autotuned buffers
+  private static final int STALLED_RCVBUF_KB = Math.max(1, Settings.getInt("LOADTEST_STALLED_RCVBUF_KB", 64));
+  private static final int LAG_LIMIT_MS = Settings.getInt("LOADTEST_LAG_LIMIT_MS", 1000);
+  private static final double MIN_DELIVERY = Settings.getDouble("LOADTEST_MIN_DELIVERY", 0.99);
+  private static final int CLIENT_THREADS = Settings.getInt("LOADTEST_CLIENT_THREADS", Runtime.getRuntime().availableProcessors());
+  private static final String REPORT = Settings.get("LOADTEST_REPORT", "build/reports/loadtest/results.json");
+  // Time between two bursts of the heatmap generator
+  private static final int BURST_INTERVAL_MS = Settings.getInt("HEATMAP_BURST_INTERVAL_MS", 10000);
+
+  // Largest frame accepted by the clients: a snapshot of the whole heatmap
+  private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+  private static final String CLIENT_THREAD_PREFIX = "loadtest-client";
+
+  private final URI uri;
+  private final EventLoopGroup group = new NioEventLoopGroup(CLIENT_THREADS, new DefaultThreadFactory(CLIENT_THREAD_PREFIX, true));
+  private final Bootstrap bootstrap;
+  private final List<LoadClient> clients = new ArrayList<>();
+  private final Recorder normalLags = new Recorder(3);
+  private final Recorder slowLags = new Recorder(3);
+  private final LoadClient.Step step = new LoadClient.Step(TimeUnit.MILLISECONDS.toNanos(LAG_LIMIT_MS));
+  // Client kinds drawn the same way on every run
+  private final Random random = new Random(42);
+  private int failed;
+
+  private LoadHarness(int port) {
+    this.uri = URI.create("ws://localhost:" + port + "/lab");
+    this.bootstrap = new Bootstrap()
+      .group(group)
+      .channel(NioSocketChannel.class);
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Offline by default, with a heatmap supplier that does not stop
+    setDefault("QM_TRANSPORT", "memory");
+    setDefault("HEATMAP_BURSTS", "0");
+    setDefault("server.port", "0");
+
+    SpringApplication application = new SpringApplication(Application.class);
+    if ("reactive".equalsIgnoreCase(Settings.get("SERVER_MODE", "servlet"))) {
+      application.setWebApplicationType(WebApplicationType.REACTIVE);
+    }
+    ConfigurableApplicationContext context = application.run(args.length > 0 ? args : new String[] {"1"});
+    int port = Integer.parseInt(context.getEnvironment().getProperty("local.server.port"));
+
+    LoadHarness harness = new LoadHarness(port);
+    Map<String, Object> report;
+    try {
+      report = harness.run(args);
+    } finally {
+      harness.close();
+      context.close();
+    }
+    File file = new File(REPORT);
+    if (file.getAbsoluteFile().getParentFile() != null) {
+      file.getAbsoluteFile().getParentFile().mkdirs();
+    }
+    new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, report);
+    System.out.println("Load test report written to " + file.getAbsolutePath());
+    // The labs' schedulers are not daemons
+    System.exit(0);
+  }
+
+  private static void setDefault(String name, String value) {
+    if (Settings.get(name, null) == null) {
+      System.setProperty(name, value);
+    }
+  }
+
+  /**
+   * Ramp the clients up until delivery degrades or every client is connected
+   *
+   * @param args Application's arguments
+   * @return the report
+   */
+  private Map<String, Object> run(String[] args) throws InterruptedException {
+    Map<String, Object> report = new LinkedHashMap<>();
+    Map<String, Object> settings = new LinkedHashMap<>();
+    settings.put("args", args.length > 0 ? args : new String[] {"1"});
+    settings.put("serverMode", Settings.get("SERVER_MODE", "servlet"));
+    settings.put("transport", Settings.get("QM_TRANSPORT", "aws"));
+    settings.put("clients", CLIENTS);
+    settings.put("stepClients", STEP_CLIENTS);
+    settings.put("stepSeconds", STEP_SECONDS);
+    settings.put("slowRatio", SLOW_RATIO);
+    settings.put("slowDelayMs", SLOW_DELAY_MS);
+    settings.put("stalledRatio", STALLED_RATIO);
+    settings.put("stalledReceiveBufferKb", STALLED_RCVBUF_KB);
+    settings.put("lagLimitMs", LAG_LIMIT_MS);
+    settings.put("minDelivery", MIN_DELIVERY);
+    settings.put("processors", Runtime.getRuntime().availableProcessors());
+    settings.put("maxHeapBytes", Runtime.getRuntime().maxMemory());
+    report.put("settings", settings);
+
+    List<Map<String, Object>> steps = new ArrayList<>();
+    report.put("steps", steps);
+    report.put("degradedAt", null);
+    while (clients.size() < CLIENTS) {
+      connect(Math.min(STEP_CLIENTS, CLIENTS - clients.size()));
+      Map<String, Object> result = measure();
+      steps.add(result);
+      @SuppressWarnings("unchecked")
+      List<String> reasons = (List<String>) result.get("degraded");
+      System.out.println("Load test: " + result.get("clients") + " clients, "
+                         + result.get("framesPerSecond") + " frames/s, p99 lag "
+                         + ((Map<?, ?>) result.get("lagMs")).get("p99") + " ms"
+                         + (reasons.isEmpty() ? "" : ", degraded: " + reasons));
+      if (!reasons.isEmpty()) {
+        Map<String, Object> degraded = new LinkedHashMap<>();
+        degraded.put("clients", result.get("clients"));
+        degraded.put("reasons", reasons);
+        report.put("degradedAt", degraded);
+        break;
+      }
+    }
+    return report;
+  }
+
+  // Open new connections and wait for their handshakes, then their introduction
+  private void connect(int count) throws InterruptedException {
+    List<LoadClient> added = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      double draw = random.nextDouble();
+      LoadClient.Kind kind = draw < STALLED_RATIO ? LoadClient.Kind.STALLED
+        : draw < STALLED_RATIO + SLOW_RATIO ? LoadClient.Kind.SLOW
+        : LoadClient.Kind.NORMAL;
+      LoadClient client = new LoadClient(kind, SLOW_DELAY_MS, kind == LoadClient.Kind.SLOW ? slowLags : normalLags, step);
+      Bootstrap clientBootstrap = bootstrap.clone();
+      if (kind == LoadClient.Kind.STALLED) {
+        clientBootstrap.option(ChannelOption.SO_RCVBUF, STALLED_RCVBUF_KB * 1024);
+      }
+      clientBootstrap
+        .handler(new ChannelInitializer<SocketChannel>() {
+          @Override
+          protected void initChannel(SocketChannel channel) {
+            channel.pipeline().addLast(
+              new HttpClientCodec(),
+              new HttpObjectAggregator(8192),
+              new WebSocketClientProtocolHandler(WebSocketClientHandshakerFactory.newHandshaker(
+                uri, WebSocketVersion.V13, null, false, EmptyHttpHeaders.INSTANCE, MAX_FRAME_BYTES)),
+              new WebSocketFrameAggregator(MAX_FRAME_BYTES),
+              client);
+          }
+        })
+        .connect(uri.getHost(), uri.getPort())
+        .addListener(future -> {
+          if (!future.isSuccess()) {
+            System.out.println("Load test client failed to connect: " + future.cause());
+          }
+        });
+      added.add(client);
+    }
+    clients.addAll(added);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(CONNECT_TIMEOUT_SECONDS);
+    while (System.nanoTime() < deadline && added.stream().anyMatch(client -> !client.connected() && !client.closed())) {
+      Thread.sleep(100);
+    }
+    failed += (int) added.stream().filter(client -> !client.connected()).count();
+    // The labs only introduce the clients once they have something to show
+    while (System.nanoTime() < deadline && added.stream().anyMatch(client -> client.kind() == LoadClient.Kind.NORMAL
+                                                                         && client.connected() && !client.closed() && !client.synced())) {
+      Thread.sleep(100);
+    }
+  }
+
+  // Measure a step with the clients connected so far
+  private Map<String, Object> measure() throws InterruptedException {
+    // Start afresh
+    normalLags.getIntervalHistogram();
+    slowLags.getIntervalHistogram();
+    long[] framesBefore = frames();
+    long bytesBefore = clients.stream().mapToLong(LoadClient::bytes).sum();
+    double sentBefore = counted("ws.frames.sent");
+    double droppedBefore = counted("ws.frames.dropped");
+    double parsedBefore = counted("heatmap.parse.lines");
+    clients.forEach(client -> {
+      client.takeDelivered();
+      client.takeWorstLag();
+      client.takeResyncs();
+    });
+    long from = System.nanoTime();
+    long to = from + TimeUnit.SECONDS.toNanos(STEP_SECONDS);
+    // Frames first received too late in the step to reach every client within the lag limit are left out
+    step.to = to - TimeUnit.MILLISECONDS.toNanos(LAG_LIMIT_MS);
+    step.from = from;
+    int peakThreads = 0;
+    while (System.nanoTime() < to) {
+      Thread.sleep(Math.min(1000, Math.max(1, TimeUnit.NANOSECONDS.toMillis(to - System.nanoTime()))));
+      peakThreads = Math.max(peakThreads, serverThreads());
+    }
+    double seconds = (System.nanoTime() - from) / 1e9;
+    long windowFrom = step.from;
+    long windowTo = step.to;
+    step.from = Long.MAX_VALUE;
+    step.to = Long.MAX_VALUE;
+
+    Map<String, Object> result = new LinkedHashMap<>();
+    long connected = clients.stream().filter(client -> client.connected() && !client.closed()).count();
+    long disconnected = clients.stream().filter(client -> client.connected() && client.closed()).count();
+    result.put("clients", clients.size());
+    result.put("connected", connected);
+    result.put("failedToConnect", failed);
+    result.put("disconnected", disconnected);
+
+    // Delivery
+    long[] framesAfter = frames();
+    long frameCount = 0;
+    Map<String, Object> byType = new LinkedHashMap<>();
+    String[] types = {"mapKey", "heatmap", "vehicles", "vehicleNames", "viewport", "tiles"};
+    for (int type = 0; type < types.length; type++) {
+      long count = framesAfter[type] - framesBefore[type];
+      frameCount += count;
+      if (count > 0) {
+        byType.put(types[type], count);
+      }
+    }
+    result.put("seconds", round(seconds));
+    result.put("framesPerSecond", round(frameCount / seconds));
+    result.put("framesByType", byType);
+    result.put("bytesPerSecond", Math.round((clients.stream().mapToLong(LoadClient::bytes).sum() - bytesBefore) / seconds));
+    // Frames sent to every client, rather than merged for some of them
+    int broadcast = Math.max(2, (int) connected / 2);
+    long[] live = LoadClient.ARRIVALS.values().stream()
+      .filter(arrival -> arrival.first >= windowFrom && arrival.first < windowTo && arrival.clients.get() >= broadcast)
+      .mapToLong(arrival -> arrival.first)
+      .sorted()
+      .toArray();
+    long merged = LoadClient.ARRIVALS.values().stream()
+      .filter(arrival -> arrival.first >= windowFrom && arrival.first < windowTo && arrival.clients.get() < broadcast)
+      .count();
+    // Forget the frames of the previous steps
+    LoadClient.ARRIVALS.values().removeIf(arrival -> arrival.first < windowFrom);
+    long expected = 0;
+    long delivered = 0;
+    long resyncs = 0;
+    Histogram worstLags = new Histogram(3);
+    for (LoadClient client : clients) {
+      long clientDelivered = client.takeDelivered().stream().filter(arrival -> arrival.clients.get() >= broadcast).count();
+      long worstLag = client.takeWorstLag();
+      long clientResyncs = client.takeResyncs();
+      if (client.kind() == LoadClient.Kind.NORMAL && client.connected()) {
+        // Live frames first received well after the client was last brought up to date
+        int since = Arrays.binarySearch(live, client.syncedAt() + step.grace);
+        expected += live.length - (since >= 0 ? since : -since - 1);
+        delivered += clientDelivered;
+        resyncs += clientResyncs;
+        worstLags.recordValue(worstLag);
+      }
+    }
+    double delivery = expected == 0 ? 1 : (double) delivered / expected;
+    // Longest time without a live frame: the heatmap flow stopped
+    long longestGap = 0;
+    long previous = windowFrom;
+    for (long first : live) {
+      longestGap = Math.max(longestGap, first - previous);
+      previous = first;
+    }
+    longestGap = Math.max(longestGap, windowTo - previous);
+    result.put("liveFrames", live.length);
+    result.put("longestLiveGapMs", TimeUnit.NANOSECONDS.toMillis(longestGap));
+    result.put("mergedFrames", merged);
+    result.put("delivery", round(delivery));
+    result.put("resyncs", resyncs);
+
+    // Lag behind the first client, in milliseconds
+    Histogram lags = normalLags.getIntervalHistogram();
+    result.put("lagMs", distribution(lags));
+    result.put("clientWorstLagMs", distribution(worstLags));
+    result.put("slowClientLagMs", distribution(slowLags.getIntervalHistogram()));
+
+    // Server
+    Map<String, Object> server = new LinkedHashMap<>();
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    server.put("heapUsedBytes", heap.getUsed());
+    server.put("heapCommittedBytes", heap.getCommitted());
+    server.put("threads", serverThreads());
+    server.put("peakThreads", peakThreads);
+    server.put("parsedLinesPerSecond", Math.round((counted("heatmap.parse.lines") - parsedBefore) / seconds));
+    server.put("framesSent", Math.round(counted("ws.frames.sent") - sentBefore));
+    server.put("framesDropped", Math.round(counted("ws.frames.dropped") - droppedBefore));
+    server.put("fanoutMs", percentiles(Metrics.globalRegistry.find("heatmap.latency").tag("hop", "fanout").timer()));
+    server.put("queueWaitMs", percentiles(Metrics.globalRegistry.find("ws.queue.wait").timer()));
+    result.put("server", server);
+
+    List<String> degraded = new ArrayList<>();
+    if (lags.getTotalCount() > 0 && lags.getValueAtPercentile(99) > TimeUnit.MILLISECONDS.toMicros(LAG_LIMIT_MS)) {
+      degraded.add("lag");
+    }
+    if (delivery < MIN_DELIVERY) {
+      degraded.add("delivery");
+    }
+    if (resyncs > 0) {
+      degraded.add("resync");
+    }
+    if (generatorBursting() && longestGap > TimeUnit.MILLISECONDS.toNanos(BURST_INTERVAL_MS + LAG_LIMIT_MS)) {
+      degraded.add("stall");
+    }
+    if (failed > 0) {
+      degraded.add("connect");
+    }
+    if (clients.stream().anyMatch(client -> client.kind() == LoadClient.Kind.NORMAL && client.closed())) {
+      degraded.add("disconnect");
+    }
+    result.put("degraded", degraded);
+    return result;
+  }
+
+  // Whether Lab 1's generator publishes a burst every BURST_INTERVAL_MS for the whole step
+  private static boolean generatorBursting() {
+    return Application.lab1() && QueueManager.inMemory() && Settings.getInt("HEATMAP_BURSTS", 12) == 0;
+  }
+
+  // Frames received by the clients so far, by type
+  private long[] frames() {
+    long[] frames = new long[Frames.TILES + 1];
+    for (LoadClient client : clients) {
+      for (int type = 0; type < frames.length; type++) {
+        frames[type] += client.frames(type);
+      }
+    }
+    return frames;
+  }
+
+  // Live threads, the clients' event loops excluded
+  private static int serverThreads() {
+    int threads = 0;
+    for (ThreadInfo thread : ManagementFactory.getThreadMXBean().dumpAllThreads(false, false)) {
+      if (!thread.getThreadName().startsWith(CLIENT_THREAD_PREFIX)) {
+        threads++;
+      }
+    }
+    return threads;
+  }
+
+  // Total of a counter over all its tags
+  private static double counted(String name) {
+    return Metrics.globalRegistry.find(name).counters().stream().mapToDouble(Counter::count).sum();
+  }
+
+  // Distribution of lags recorded in microseconds, in milliseconds
+  private static Map<String, Object> distribution(Histogram histogram) {
+    Map<String, Object> distribution = new LinkedHashMap<>();
+    distribution.put("count", histogram.getTotalCount());
+    distribution.put("p50", round(histogram.getValueAtPercentile(50) / 1000d));
+    distribution.put("p90", round(histogram.getValueAtPercentile(90) / 1000d));
+    distribution.put("p99", round(histogram.getValueAtPercentile(99) / 1000d));
+    distribution.put("p999", round(histogram.getValueAtPercentile(99.9) / 1000d));
+    distribution.put("max", round(histogram.getMaxValue() / 1000d));
+    return distribution;
+  }
+
+  // Percentiles published by a server's timer, in milliseconds
+  private static Map<String, Object> percentiles(Timer timer) {
+    Map<String, Object> percentiles = new LinkedHashMap<>();
+    if (timer != null) {
+      for (ValueAtPercentile value : timer.takeSnapshot().percentileValues()) {
+        percentiles.put("p" + BigDecimal.valueOf(value.percentile()).movePointRight(2).stripTrailingZeros().toPlainString().replace(".", ""),
+                        round(value.value(TimeUnit.MILLISECONDS)));
+      }
+    }
+    return percentiles;
+  }
+
+  private static double round(double value) {
+    return Math.round(value * 1000) / 1000d;
+  }
+
+  private void close() {
+    for (LoadClient client : clients) {
+      Channel channel = client.channel();
+      if (channel != null) {
+        channel.close();
+      }
+    }
+    group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+  }
+}
@@ -8,28 +8,88 @@ package map;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
 import org.springframework.context.ApplicationContext;
-import org.springframework.stereotype.Component;
-import org.springframework.context.annotation.Bean;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.WebSocketHandler;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.BinaryWebSocketHandler;
 
-@EnableWebSocket
+import qm.Settings;
+
+import java.nio.ByteBuffer;
+
 @SpringBootApplication
 public class Application {
   
     private static String[] args;
     private static String lab;
+    // Map access key frame, the same for every client
+    private static final byte[] MAP_KEY_FRAME = Frames.mapKey(System.getenv("MAP_KEY"));
     
     public static void main(String[] args)
     {
-      SpringApplication.run(Application.class, args);
+      SpringApplication application = new SpringApplication(Application.class);
+      // servlet: WebSocket on the servlet container, reactive: WebFlux on Reactor Netty (see ReactiveServer)
+      if ("reactive".equalsIgnoreCase(Settings.get("SERVER_MODE", "servlet"))) {
+        System.out.println("Reactive server mode selected");
+        application.setWebApplicationType(WebApplicationType.REACTIVE);
+      }
+      application.run(args);
+    }
+    
+    static String[] args() {
+      return args;
+    }
+    
+    static byte[] mapKeyFrame() {
+      return MAP_KEY_FRAME;
+    }
+    
+    static boolean lab1() {
+      return lab.equals("1") || lab.equals("both");
+    }
+    
+    static boolean lab2() {
+      return lab.equals("2") || lab.equals("both");
+    }
+    
+   /**
+    * Pass a message received from a client to the labs
+    * 
+    * @param clientId Client's identifier
+    * @param payload Message received
+    */    
+    static void received(String clientId, ByteBuffer payload)
+    {
+      // Area of the map shown by the client, sent on every pan or zoom
+      Viewport viewport = Frames.viewport(payload);
+      if (viewport == null) {
+        System.out.println("Ignoring unknown message from socket " + clientId);
+        return;
+      }
+      if (lab1()) {
+        try {
+          Lab1.getInstance().updateViewport(clientId, viewport);
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+      }
+      if (lab2()) {
+        try {          
+          Lab2.getInstance(args).updateViewport(clientId, viewport);
+        } catch(Exception e) {
+          e.printStackTrace();
+        }          
+      }  
     }
     
     @Bean
@@ -54,7 +114,9 @@ public class Application {
         };
     }
  
-    @Component
+    @Configuration
+    @EnableWebSocket
+    @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
     public static class MyWebSocketConfigurer implements WebSocketConfigurer 
     {
         @Override
@@ -63,25 +125,26 @@ public class Application {
         }
     }
     
-    @Component
     public static class MyBinaryHandler extends BinaryWebSocketHandler 
     {
       public void afterConnectionEstablished(WebSocketSession session)
       {
+        // Outbound queue of the session, released when it closes
+        WsPacket.open(session);
         // Send map access key
         System.out.println("Trying to send the map access key (MAP_KEY): " + System.getenv("MAP_KEY"));
-        if (!WsPacket.send(session, "m0," + System.getenv("MAP_KEY"))){
+        if (!WsPacket.send(session, MAP_KEY_FRAME)){
           System.out.println("Error whilst trying to send map access key. Socket " + session.getId() + " closed!");
           return; 
         }
-        if (lab.equals("1") || lab.equals("both")) {
+        if (lab1()) {
           try {
             Lab1.getInstance().subscribeClient(session);
           } catch(Exception e) {
             e.printStackTrace();
           }
         }
-        if (lab.equals("2") || lab.equals("both")) {
+        if (lab2()) {
           try {          
             Lab2.getInstance(args).subscribeClient(session);
           } catch(Exception e) {
@@ -89,5 +152,16 @@ public class Application {
           }          
         }  
       }
+      
+      protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message)
+      {
+        received(session.getId(), message.getPayload());
+      }
+      
+      public void afterConnectionClosed(WebSocketSession session, CloseStatus status)
+      {
+        // Discard whatever is still queued for this client
+        WsPacket.release(session);
+      }
     }
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package map;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.Map;
+
+/**
+ * Spatial index of the heatmap cells: a uniform grid of buckets, each one
+ * holding the keys (see HeatmapGrid.key) of the cells it covers.
+ *
+ * Cells are only ever added, by a single writer. A bucket's keys are
+ * replaced by a longer copy when a cell is added, so readers scan the
+ * buckets without locking.
+ */
+public class CellIndex {
+
+  /**
+   * Callback receiving the cells found
+   */
+  public interface LocationVisitor {
+    void visit(int lat, int lon);
+  }
+
+  private static final int MIN_LAT = -90_000_000;
+  private static final int MIN_LON = -180_000_000;
+  private static final int MAX_LON = 180_000_000;
+
+  // Fixed-point size of a bucket's side
+  private final int bucketSize;
+  private final Map<Long, long[]> buckets = new ConcurrentHashMap<>();
+
+  /**
+   * Create an index
+   *
+   * @param bucketDegrees Size of a bucket's side, in degrees
+   */
+  public CellIndex(double bucketDegrees) {
+    this.bucketSize = Math.max(1, Frames.toFixed(bucketDegrees));
+  }
+
+  /**
+   * Add a new cell. Writer thread only.
+   *
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   */
+  public void add(int lat, int lon) {
+    Long bucket = bucket(row(lat), column(lon));
+    long[] keys = buckets.get(bucket);
+    long[] added = keys == null ? new long[1] : Arrays.copyOf(keys, keys.length + 1);
+    added[added.length - 1] = HeatmapGrid.key(lat, lon);
+    buckets.put(bucket, added);
+  }
+
+  /**
+   * Visit the cells of an area, except the ones of another area
+   *
+   * @param area Area to be scanned
+   * @param except Area to be skipped, null if none
+   * @param visitor Callback receiving the cells
+   */
+  public void forEachIn(Viewport area, Viewport except, LocationVisitor visitor) {
+    int firstRow = row(area.south());
+    int lastRow = row(area.north());
+    if (area.crossesAntimeridian()) {
+      scan(firstRow, lastRow, column(area.west()), column(MAX_LON), area, except, visitor);
+      scan(firstRow, lastRow, column(MIN_LON), column(area.east()), area, except, visitor);
+    } else {
+      scan(firstRow, lastRow, column(area.west()), column(area.east()), area, except, visitor);
+    }
+  }
+
+  private void scan(int firstRow, int lastRow, int firstColumn, int lastColumn,
+                    Viewport area, Viewport except, LocationVisitor visitor) {
+    if ((long) (lastRow - firstRow + 1) * (lastColumn - firstColumn + 1) > buckets.size()) {
+      // Sparse area: cheaper to go through the buckets that exist
+      for (Map.Entry<Long, long[]> bucket : buckets.entrySet()) {
+        int row = (int) (bucket.getKey() >> 32);
+        int column = (int) (long) bucket.getKey();
+        if (row >= firstRow && row <= lastRow && column >= firstColumn && column <= lastColumn) {
+          visit(bucket.getValue(), area, except, visitor);
+        }
+      }
+      return;
+    }
+    for (int row = firstRow; row <= lastRow; row++) {
+      for (int column = firstColumn; column <= lastColumn; column++) {
+        long[] keys = buckets.get(bucket(row, column));
+        if (keys != null) {
+          visit(keys, area, except, visitor);
+        }
+      }
+    }
+  }
+
+  private static void visit(long[] keys, Viewport area, Viewport except, LocationVisitor visitor) {
+    for (long key : keys) {
+      int lat = HeatmapGrid.lat(key);
+      int lon = HeatmapGrid.lon(key);
+      if (area.contains(lat, lon) && (except == null || !except.contains(lat, lon))) {
+        visitor.visit(lat, lon);
+      }
+    }
+  }
+
+  private int row(int lat) {
+    return (int) (((long) lat - MIN_LAT) / bucketSize);
+  }
+
+  private int column(int lon) {
+    return (int) (((long) lon - MIN_LON) / bucketSize);
+  }
+
+  private static Long bucket(int row, int column) {
+    return ((long) row << 32) | (column & 0xFFFFFFFFL);
+  }
+}
@@ -0,0 +1,228 @@
+package map;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary wire format of the messages exchanged with the clients (see client.js).
+ *
+ * Every frame starts with a 6-byte header, followed by its records:
+ *   u8 type | u8 flags | u32 count
+ * HEATMAP frames only hold the cells whose level changed, unless
+ * flagged SNAPSHOT.
+ * Coordinates are fixed-point integers: degrees * 1,000,000.
+ * All values are big-endian.
+ *
+ *   MAP_KEY       count = key length  | UTF-8 key
+ *   HEATMAP       count = cells       | per cell:    i32 lat, i32 lon, u8 level
+ *   VEHICLES      count = vehicles    | per vehicle: u16 id, i32 lat, i32 lon
+ *   VEHICLE_NAMES count = vehicles    | per vehicle: u16 id, u16 length, UTF-8 name
+ *   TILES         count = tiles       | per tile:    i32 south, i32 west, i32 side, u8 level
+ * TILES frames aggregate the heatmap cells of square areas (level of detail);
+ * flagged SNAPSHOT they replace every cell and tile shown.
+ *
+ * Sent by the clients:
+ *   VIEWPORT      count = 1           | i32 south, i32 west, i32 north, i32 east, u8 zoom
+ */
+public class Frames {
+
+  public static final byte MAP_KEY = 0;
+  public static final byte HEATMAP = 1;
+  public static final byte VEHICLES = 2;
+  public static final byte VEHICLE_NAMES = 3;
+  public static final byte VIEWPORT = 4;
+  public static final byte TILES = 5;
+
+  // Header flags
+  // HEATMAP: the frame holds every cell known to the server (resync)
+  public static final int SNAPSHOT = 0x01;
+
+  public static final int HEADER_SIZE = 6;
+  public static final int HEATMAP_CELL_SIZE = 9;
+  public static final int VEHICLE_SIZE = 10;
+  public static final int VIEWPORT_SIZE = 17;
+  public static final int TILE_SIZE = 13;
+
+  // Fixed-point scale of the coordinates
+  public static final double SCALE = 1_000_000d;
+
+  // Utility class
+  private Frames() {}
+
+  /**
+   * Convert degrees to fixed-point
+   *
+   * @param degrees Latitude or longitude
+   * @return the fixed-point value
+   */
+  public static int toFixed(double degrees) {
+    return (int) Math.round(degrees * SCALE);
+  }
+
+  /**
+   * Convert fixed-point to degrees
+   *
+   * @param fixed Fixed-point latitude or longitude
+   * @return the value in degrees
+   */
+  public static double toDegrees(int fixed) {
+    return fixed / SCALE;
+  }
+
+  /**
+   * Encode the map access key
+   *
+   * @param key Map access key
+   * @return the frame
+   */
+  public static byte[] mapKey(String key) {
+    byte[] bytes = String.valueOf(key).getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = header(MAP_KEY, 0, bytes.length, bytes.length);
+    frame.put(bytes);
+    return frame.array();
+  }
+
+  /**
+   * Encode heatmap cells
+   *
+   * @param batch Cells to be encoded
+   * @return the frame
+   */
+  public static byte[] heatmap(HeatmapBatch batch) {
+    return heatmap(batch, 0);
+  }
+
+  /**
+   * Encode heatmap cells
+   *
+   * @param batch Cells to be encoded
+   * @param flags Header flags
+   * @return the frame
+   */
+  public static byte[] heatmap(HeatmapBatch batch, int flags) {
+    int count = batch.size();
+    ByteBuffer frame = header(HEATMAP, flags, count, count * HEATMAP_CELL_SIZE);
+    for (int i = 0; i < count; i++) {
+      frame.putInt(batch.lat(i))
+        .putInt(batch.lon(i))
+        .put(batch.level(i));
+    }
+    return frame.array();
+  }
+
+  /**
+   * Encode heatmap tiles
+   *
+   * @param tiles South-west corner and level of each tile
+   * @param side Fixed-point side of the tiles
+   * @param flags Header flags
+   * @return the frame
+   */
+  public static byte[] tiles(HeatmapBatch tiles, int side, int flags) {
+    int count = tiles.size();
+    ByteBuffer frame = header(TILES, flags, count, count * TILE_SIZE);
+    for (int i = 0; i < count; i++) {
+      frame.putInt(tiles.lat(i))
+        .putInt(tiles.lon(i))
+        .putInt(side)
+        .put(tiles.level(i));
+    }
+    return frame.array();
+  }
+
+  /**
+   * Encode vehicle positions
+   *
+   * @param ids Interned vehicle ids
+   * @param lats Fixed-point latitudes
+   * @param lons Fixed-point longitudes
+   * @param from Index of the first vehicle to be encoded
+   * @param to Index after the last vehicle to be encoded
+   * @return the frame
+   */
+  public static byte[] vehicles(int[] ids, int[] lats, int[] lons, int from, int to) {
+    ByteBuffer frame = header(VEHICLES, 0, to - from, (to - from) * VEHICLE_SIZE);
+    for (int i = from; i < to; i++) {
+      frame.putShort((short) ids[i])
+        .putInt(lats[i])
+        .putInt(lons[i]);
+    }
+    return frame.array();
+  }
+
+  /**
+   * Encode the names of a range of interned vehicle ids
+   *
+   * @param names Vehicle names indexed by id
+   * @param from First id to be encoded
+   * @param to Id after the last one to be encoded
+   * @return the frame
+   */
+  public static byte[] vehicleNames(String[] names, int from, int to) {
+    byte[][] encoded = new byte[to - from][];
+    int size = 0;
+    for (int id = from; id < to; id++) {
+      encoded[id - from] = names[id].getBytes(StandardCharsets.UTF_8);
+      size += 4 + encoded[id - from].length;
+    }
+    ByteBuffer frame = header(VEHICLE_NAMES, 0, to - from, size);
+    for (int id = from; id < to; id++) {
+      frame.putShort((short) id)
+        .putShort((short) encoded[id - from].length)
+        .put(encoded[id - from]);
+    }
+    return frame.array();
+  }
+
+  /**
+   * Keep the vehicles of a VEHICLES frame that are in an area
+   *
+   * @param frame VEHICLES frame
+   * @param area Area of the vehicles kept
+   * @param except Area of the vehicles left out, null if none
+   * @return the frame of the vehicles kept, the given frame if all of them are
+   */
+  public static byte[] vehiclesIn(byte[] frame, Viewport area, Viewport except) {
+    ByteBuffer in = ByteBuffer.wrap(frame);
+    int count = in.getInt(2);
+    int[] ids = new int[count];
+    int[] lats = new int[count];
+    int[] lons = new int[count];
+    int kept = 0;
+    for (int i = 0; i < count; i++) {
+      int position = HEADER_SIZE + i * VEHICLE_SIZE;
+      int lat = in.getInt(position + 2);
+      int lon = in.getInt(position + 6);
+      if (area.contains(lat, lon) && (except == null || !except.contains(lat, lon))) {
+        ids[kept] = in.getShort(position) & 0xFFFF;
+        lats[kept] = lat;
+        lons[kept] = lon;
+        kept++;
+      }
+    }
+    return kept == count ? frame : vehicles(ids, lats, lons, 0, kept);
+  }
+
+  /**
+   * Decode a VIEWPORT frame sent by a client
+   *
+   * @param frame Frame received
+   * @return the viewport, null if the frame is not a valid VIEWPORT frame
+   */
+  public static Viewport viewport(ByteBuffer frame) {
+    int start = frame.position();
+    if (frame.remaining() < HEADER_SIZE + VIEWPORT_SIZE || frame.get(start) != VIEWPORT) {
+      return null;
+    }
+    int body = start + HEADER_SIZE;
+    return new Viewport(frame.getInt(body), frame.getInt(body + 4), frame.getInt(body + 8), frame.getInt(body + 12),
+                        frame.get(body + 16) & 0xFF);
+  }
+
+  private static ByteBuffer header(byte type, int flags, int count, int bodySize) {
+    return ByteBuffer.allocate(HEADER_SIZE + bodySize)
+      .put(type)
+      .put((byte) flags)
+      .putInt(count);
+  }
+}
@@ -0,0 +1,123 @@
+package map;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.MessageSystemAttributeName;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times a heatmap message went through on its way to the clients, carried
+ * with its batch and delta. Each hop is recorded in an HdrHistogram-backed
+ * timer (heatmap.latency, tag hop) publishing p50, p99 and p999:
+ *  - queued: SentTimestamp (SNS delivered the message into the queue) to
+ *    ApproximateFirstReceiveTimestamp, both on the AWS clock;
+ *  - receive: first receive to the message handed over to Lab 1 (AWS clock to local clock);
+ *  - parse: handed over to parsed and applied to the heatmap;
+ *  - fanout: parsed to the frame handed to a client's socket, per client;
+ *  - end_to_end: SentTimestamp to the frame handed to a client's socket, per client.
+ * Hops across clocks include their skew; negative times are recorded as 0.
+ */
+public class Freshness {
+
+  private static final Timer QUEUED = timer("queued");
+  private static final Timer RECEIVE = timer("receive");
+  private static final Timer PARSE = timer("parse");
+  private static final Timer FANOUT = timer("fanout");
+  private static final Timer END_TO_END = timer("end_to_end");
+
+  // Epoch milliseconds on the AWS clock, 0 if unknown
+  private final long sent;
+  private final long firstReceive;
+  // Local clock
+  private final long received;
+  private final long receivedNanos;
+  private volatile long parsedNanos;
+
+  private Freshness(long sent, long firstReceive) {
+    this.sent = sent;
+    this.firstReceive = firstReceive;
+    this.received = System.currentTimeMillis();
+    this.receivedNanos = System.nanoTime();
+    this.parsedNanos = receivedNanos;
+  }
+
+  /**
+   * Start timing a message just handed over by the queue poller
+   *
+   * @param message Message received, with its system attributes
+   * @return the message's times
+   */
+  public static Freshness of(Message message) {
+    return new Freshness(timestamp(message, MessageSystemAttributeName.SENT_TIMESTAMP),
+                         timestamp(message, MessageSystemAttributeName.APPROXIMATE_FIRST_RECEIVE_TIMESTAMP));
+  }
+
+  /**
+   * Start timing a batch replayed from a journal: only the local hops are recorded
+   *
+   * @return the batch's times
+   */
+  public static Freshness replayed() {
+    return new Freshness(0, 0);
+  }
+
+  /**
+   * Get the time the message was handed over
+   *
+   * @return the local time, epoch milliseconds
+   */
+  public long received() {
+    return received;
+  }
+
+  /**
+   * Record the hops up to the message parsed and applied. Writer thread only,
+   * before the delta is published.
+   */
+  public void parsed() {
+    parsedNanos = System.nanoTime();
+    if (sent > 0 && firstReceive > 0) {
+      record(QUEUED, firstReceive - sent);
+    }
+    if (firstReceive > 0) {
+      record(RECEIVE, received - firstReceive);
+    }
+    PARSE.record(parsedNanos - receivedNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Record the hops up to a frame with the message's changes handed to a client's socket
+   */
+  public void written() {
+    FANOUT.record(System.nanoTime() - parsedNanos, TimeUnit.NANOSECONDS);
+    if (sent > 0) {
+      record(END_TO_END, System.currentTimeMillis() - sent);
+    }
+  }
+
+  private static void record(Timer timer, long millis) {
+    timer.record(Math.max(0, millis), TimeUnit.MILLISECONDS);
+  }
+
+  private static long timestamp(Message message, MessageSystemAttributeName name) {
+    try {
+      String value = message.attributes().get(name);
+      return value == null ? 0 : Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static Timer timer(String hop) {
+    return Timer.builder("heatmap.latency")
+      .description("Latency of the heatmap messages at each hop from the supplier to the clients")
+      .tag("hop", hop)
+      .publishPercentiles(0.5, 0.99, 0.999)
+      // 2 significant digits
+      .percentilePrecision(2)
+      .register(Metrics.globalRegistry);
+  }
+}
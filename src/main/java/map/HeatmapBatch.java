@@ -0,0 +1,116 @@
+package map;
+
+import java.util.Arrays;
+
+/**
+ * Heatmap cells carried by one supplier message, parsed once for all clients.
+ * Coordinates are fixed-point (see Frames).
+ */
+public class HeatmapBatch implements HeatmapParser.Cells {
+
+  private int size;
+  // Lines of the supplier message left out
+  private int malformed;
+  private int[] lats;
+  private int[] lons;
+  private byte[] levels;
+  // Times of the supplier message the cells came from, null if none
+  private Freshness freshness;
+
+  public HeatmapBatch(int capacity) {
+    lats = new int[capacity];
+    lons = new int[capacity];
+    levels = new byte[capacity];
+  }
+
+  /**
+   * Parse the "lat,lon,level" lines of a supplier message (see HeatmapParser).
+   * Malformed lines are skipped and counted.
+   *
+   * @param body Message body
+   * @return the cells parsed
+   */
+  public static HeatmapBatch parse(String body) {
+    // About 22 characters per line: the arrays are seldom grown
+    HeatmapBatch batch = new HeatmapBatch(Math.max(16, body.length() / 20));
+    batch.malformed = HeatmapParser.parse(body, batch);
+    return batch;
+  }
+
+  /**
+   * Append a cell
+   *
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   * @param level Risk level
+   */
+  @Override
+  public void add(int lat, int lon, byte level) {
+    if (size == lats.length) {
+      int capacity = size * 2;
+      lats = Arrays.copyOf(lats, capacity);
+      lons = Arrays.copyOf(lons, capacity);
+      levels = Arrays.copyOf(levels, capacity);
+    }
+    lats[size] = lat;
+    lons[size] = lon;
+    levels[size] = level;
+    size++;
+  }
+
+  /**
+   * Get the cells in a viewport
+   *
+   * @param viewport Area kept
+   * @return the cells in the viewport, this batch if they all are
+   */
+  public HeatmapBatch within(Viewport viewport) {
+    HeatmapBatch kept = null;
+    for (int i = 0; i < size; i++) {
+      boolean inside = viewport.contains(lats[i], lons[i]);
+      if (kept == null && !inside) {
+        // First cell left out: copy the ones before
+        kept = new HeatmapBatch(Math.max(16, i));
+        for (int j = 0; j < i; j++) {
+          kept.add(lats[j], lons[j], levels[j]);
+        }
+      } else if (kept != null && inside) {
+        kept.add(lats[i], lons[i], levels[i]);
+      }
+    }
+    return kept == null ? this : kept;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the number of malformed lines of the supplier message
+   *
+   * @return the lines left out, 0 if not parsed from a message
+   */
+  public int malformed() {
+    return malformed;
+  }
+
+  public Freshness freshness() {
+    return freshness;
+  }
+
+  public void setFreshness(Freshness freshness) {
+    this.freshness = freshness;
+  }
+
+  public int lat(int i) {
+    return lats[i];
+  }
+
+  public int lon(int i) {
+    return lons[i];
+  }
+
+  public byte level(int i) {
+    return levels[i];
+  }
+}
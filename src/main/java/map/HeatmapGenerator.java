@@ -0,0 +1,135 @@
+package map;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import qm.QueueManager;
+import qm.Settings;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stand-in for the companion supplier application, with the in-memory queues
+ * and topics (QM_TRANSPORT=memory), for load tests without AWS nor network.
+ *
+ * It listens to the supplier's queue like the supplier does and, on every
+ * "start" command, publishes bursts of risk areas to the supplier's topic:
+ * each burst gives every area a new random level. Areas and levels come from
+ * a fixed seed, so runs are repeatable.
+ */
+public class HeatmapGenerator {
+
+  // Risk areas in each burst
+  private static final int AREAS = Settings.getInt("HEATMAP_BURST_AREAS", 20000);
+  // Lines per message published: SNS messages are limited to 256 KB
+  private static final int LINES_PER_MESSAGE = Math.max(1, Settings.getInt("HEATMAP_BURST_LINES_PER_MESSAGE", 1000));
+  private static final int INTERVAL_MS = Math.max(1, Settings.getInt("HEATMAP_BURST_INTERVAL_MS", 10000));
+  // Bursts published after each start command, 0 for no end
+  private static final int BURSTS = Settings.getInt("HEATMAP_BURSTS", 12);
+  private static final long SEED = Settings.getInt("HEATMAP_BURST_SEED", 42);
+
+  // Over the UK, as the supplier's
+  private static final double MIN_LAT = 50.0;
+  private static final double MIN_LON = -6.0;
+  private static final double SPAN_DEGREES = 8.0;
+  // Levels sent by the supplier: 1 (low) to 3 (high)
+  private static final int MIN_LEVEL = 1;
+  private static final int MAX_LEVEL = 3;
+
+  private static HeatmapGenerator instance;
+
+  private final String supplierQueueUrl;
+  private final String topicArn;
+  // "lat,lon," of each area
+  private final String[] areas = new String[AREAS];
+  private final Random levels = new Random(SEED);
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "heatmap-generator");
+    thread.setDaemon(true);
+    return thread;
+  });
+  private ScheduledFuture<?> bursts;
+  private int remaining;
+
+  private HeatmapGenerator(String supplierQueueUrl, String topicArn) {
+    this.supplierQueueUrl = supplierQueueUrl;
+    this.topicArn = topicArn;
+    Random random = new Random(SEED);
+    for (int i = 0; i < AREAS; i++) {
+      areas[i] = String.format(Locale.ROOT, "%.6f,%.6f,", MIN_LAT + random.nextDouble() * SPAN_DEGREES,
+                               MIN_LON + random.nextDouble() * SPAN_DEGREES);
+    }
+  }
+
+  /**
+   * Create the supplier's queues and start listening to its commands. Once only.
+   *
+   * @param supplierQueueUrl URL of the queue the supplier gets its commands from
+   * @param topicArn ARN of the topic the supplier publishes the heatmap to
+   * @param deadLetterQueueArn ARN of the dead-letter queue of the consumers' queues
+   * @throws Exception
+   */
+  public static synchronized void start(String supplierQueueUrl, String topicArn, String deadLetterQueueArn) throws Exception {
+    if (instance != null) {
+      return;
+    }
+    QueueManager.createQueue(supplierQueueUrl.substring(supplierQueueUrl.lastIndexOf('/') + 1));
+    QueueManager.createQueue(deadLetterQueueArn.substring(deadLetterQueueArn.lastIndexOf(':') + 1));
+    instance = new HeatmapGenerator(supplierQueueUrl, topicArn);
+    System.out.println("Heatmap generator ready: " + AREAS + " areas every " + INTERVAL_MS + " ms in messages of " +
+                       LINES_PER_MESSAGE + " lines, " + (BURSTS > 0 ? BURSTS + " bursts" : "no end") + " per start command");
+    instance.listen();
+  }
+
+  private void listen() {
+    QueueManager.getAsync(supplierQueueUrl, 10, 20).whenComplete((msgs, err) -> {
+      if (err != null) {
+        System.out.println("Heatmap generator stopped: " + err);
+        return;
+      }
+      for (Message msg : msgs) {
+        if ("start".equals(msg.body().trim())) {
+          scheduler.execute(this::restart);
+        }
+      }
+      listen();
+    });
+  }
+
+  private void restart() {
+    remaining = BURSTS;
+    if (bursts == null || bursts.isDone()) {
+      System.out.println("Heatmap generator started");
+      bursts = scheduler.scheduleAtFixedRate(this::burst, 0, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void burst() {
+    long start = System.nanoTime();
+    int messages = 0;
+    StringBuilder body = new StringBuilder(LINES_PER_MESSAGE * 24);
+    try {
+      for (int i = 0; i < AREAS; i++) {
+        body.append(areas[i]).append(MIN_LEVEL + levels.nextInt(MAX_LEVEL - MIN_LEVEL + 1)).append('\n');
+        if ((i + 1) % LINES_PER_MESSAGE == 0 || i == AREAS - 1) {
+          QueueManager.publish(topicArn, body.toString());
+          body.setLength(0);
+          messages++;
+        }
+      }
+    } catch (Exception e) {
+      System.out.println("Exception caught while trying to publish the heatmap...");
+      e.printStackTrace();
+    }
+    Meters.GENERATOR_BURST.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    Meters.GENERATOR_MESSAGES.increment(messages);
+    if (BURSTS > 0 && --remaining <= 0) {
+      System.out.println("Heatmap generator stopped");
+      bursts.cancel(false);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package map;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open-addressing hash table of heatmap cells keyed by their quantized
+ * (fixed-point) coordinates packed into a long.
+ * Each cell holds a one-byte level and the version of its last change.
+ *
+ * Single writer, lock-free readers: a cell is published by writing its
+ * version last (ordered store), so a reader that sees a non-zero version
+ * also sees the cell's key and a level at least as recent. Growing the
+ * table publishes a new set of arrays; readers keep scanning the arrays
+ * they started with. Updates allocate nothing.
+ */
+public class HeatmapGrid {
+
+  /**
+   * Callback receiving the cells scanned
+   */
+  public interface CellVisitor {
+    void visit(int lat, int lon, byte level, long version);
+  }
+
+  private static final class Table {
+    final long[] keys;
+    final byte[] levels;
+    // 0 marks an empty slot
+    final AtomicLongArray versions;
+    final int mask;
+
+    Table(int capacity) {
+      keys = new long[capacity];
+      levels = new byte[capacity];
+      versions = new AtomicLongArray(capacity);
+      mask = capacity - 1;
+    }
+  }
+
+  private volatile Table table;
+  private volatile int size;
+
+  /**
+   * Create a grid
+   *
+   * @param expectedCells number of cells held without growing
+   */
+  public HeatmapGrid(int expectedCells) {
+    // Keep the load factor under 0.5
+    table = new Table(Integer.highestOneBit(Math.max(16, expectedCells) * 4 - 1));
+  }
+
+  /**
+   * Set the level of a cell. Writer thread only.
+   *
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   * @param level Risk level
+   * @param version Version of this change, greater than 0
+   * @return the previous level as an unsigned byte (the given one if unchanged), -1 if the cell is new
+   */
+  public int update(int lat, int lon, byte level, long version) {
+    Table t = table;
+    long key = key(lat, lon);
+    int slot = slot(key, t.mask);
+    while (t.versions.get(slot) != 0) {
+      if (t.keys[slot] == key) {
+        byte previous = t.levels[slot];
+        if (previous != level) {
+          t.levels[slot] = level;
+          t.versions.lazySet(slot, version);
+        }
+        return previous & 0xFF;
+      }
+      slot = (slot + 1) & t.mask;
+    }
+    // New cell
+    t.keys[slot] = key;
+    t.levels[slot] = level;
+    t.versions.lazySet(slot, version);
+    size = size + 1;
+    if (size * 2 > t.keys.length) {
+      grow(t);
+    }
+    return -1;
+  }
+
+  /**
+   * Get the level of a cell
+   *
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   * @return the level, -1 if the cell is unknown
+   */
+  public int level(int lat, int lon) {
+    Table t = table;
+    long key = key(lat, lon);
+    int slot = slot(key, t.mask);
+    while (t.versions.get(slot) != 0) {
+      if (t.keys[slot] == key) {
+        return t.levels[slot];
+      }
+      slot = (slot + 1) & t.mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Get the number of cells
+   *
+   * @return the number of cells
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Visit every cell
+   *
+   * @param visitor Callback receiving the cells
+   */
+  public void forEach(CellVisitor visitor) {
+    forEachChangedSince(0, visitor);
+  }
+
+  /**
+   * Visit the cells changed after the given version (dirty scan)
+   *
+   * @param version Version already known by the caller
+   * @param visitor Callback receiving the cells
+   */
+  public void forEachChangedSince(long version, CellVisitor visitor) {
+    Table t = table;
+    for (int slot = 0; slot < t.keys.length; slot++) {
+      long cellVersion = t.versions.get(slot);
+      if (cellVersion > version) {
+        long key = t.keys[slot];
+        visitor.visit(lat(key), lon(key), t.levels[slot], cellVersion);
+      }
+    }
+  }
+
+  /**
+   * Pack fixed-point coordinates into a key
+   *
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   * @return the key
+   */
+  public static long key(int lat, int lon) {
+    return ((long) lat << 32) | (lon & 0xFFFFFFFFL);
+  }
+
+  public static int lat(long key) {
+    return (int) (key >> 32);
+  }
+
+  public static int lon(long key) {
+    return (int) key;
+  }
+
+  private void grow(Table old) {
+    Table t = new Table(old.keys.length * 2);
+    for (int i = 0; i < old.keys.length; i++) {
+      long version = old.versions.get(i);
+      if (version != 0) {
+        int slot = slot(old.keys[i], t.mask);
+        while (t.versions.get(slot) != 0) {
+          slot = (slot + 1) & t.mask;
+        }
+        t.keys[slot] = old.keys[i];
+        t.levels[slot] = old.levels[i];
+        t.versions.lazySet(slot, version);
+      }
+    }
+    table = t;
+  }
+
+  private static int slot(long key, int mask) {
+    // Spread the coordinates' bits (Murmur3 finalizer)
+    long h = key;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return (int) h & mask;
+  }
+}
@@ -0,0 +1,172 @@
+package map;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Append-only journal of the heatmap batches received, for replays
+ * (see JournalReplay). Batches are written one after the other into
+ * memory-mapped segment files of a directory, without allocating per batch.
+ * A new journal never overwrites a directory's segments: it starts a new one.
+ *
+ * Segment: u32 magic | u32 version | records, then zeros
+ * Record:  u32 size (whole record, 0 past the last one) | i64 received (epoch ms) |
+ *          u32 cells | per cell: i32 lat, i32 lon, u8 level
+ * The size of a record is written last: a reader never sees half a record.
+ * All values are big-endian. Pages reach the disk when the OS flushes them,
+ * when their segment is full, or on close.
+ */
+public class HeatmapJournal {
+
+  static final int MAGIC = 0x484d4a31; // "HMJ1"
+  static final int VERSION = 1;
+  static final int SEGMENT_HEADER_SIZE = 8;
+  static final int RECORD_HEADER_SIZE = 16;
+  static final String PREFIX = "heatmap-";
+  static final String SUFFIX = ".journal";
+  // A MappedByteBuffer cannot go beyond 2 GB
+  public static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+  private final Path directory;
+  private final int segmentSize;
+  private int segmentIndex;
+  // null until the first batch, and once closed
+  private MappedByteBuffer segment;
+  private boolean closed;
+
+  private HeatmapJournal(Path directory, int segmentSize, int lastSegment) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.segmentIndex = lastSegment;
+  }
+
+  /**
+   * Open a journal, after the segments already in its directory
+   *
+   * @param directory Directory of the segment files, created if needed
+   * @param segmentSize Size of each segment file in bytes, at most MAX_SEGMENT_SIZE; larger batches get a segment of their own
+   * @return the journal
+   * @throws IOException if the directory cannot be created or read
+   * @throws IllegalArgumentException if the segment size is larger than MAX_SEGMENT_SIZE
+   */
+  public static HeatmapJournal open(String directory, long segmentSize) throws IOException {
+    if (segmentSize > MAX_SEGMENT_SIZE) {
+      throw new IllegalArgumentException("Journal segments cannot be mapped beyond " + MAX_SEGMENT_SIZE + " bytes: " + segmentSize);
+    }
+    Path path = Paths.get(directory);
+    Files.createDirectories(path);
+    List<Path> segments = segments(path);
+    int last = segments.isEmpty() ? 0 : index(segments.get(segments.size() - 1));
+    return new HeatmapJournal(path, (int) Math.max(SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE, segmentSize), last);
+  }
+
+  /**
+   * Append a batch. Single writer: the heatmap flow.
+   *
+   * @param received Time the batch was received, epoch milliseconds
+   * @param batch Cells received
+   * @throws IOException if a new segment cannot be created
+   */
+  public synchronized void append(long received, HeatmapBatch batch) throws IOException {
+    if (closed) {
+      return;
+    }
+    int cells = batch.size();
+    int size = RECORD_HEADER_SIZE + cells * Frames.HEATMAP_CELL_SIZE;
+    if (segment == null || segment.remaining() < size) {
+      roll(size);
+    }
+    int start = segment.position();
+    segment.position(start + 4);
+    segment.putLong(received);
+    segment.putInt(cells);
+    for (int i = 0; i < cells; i++) {
+      segment.putInt(batch.lat(i));
+      segment.putInt(batch.lon(i));
+      segment.put(batch.level(i));
+    }
+    segment.putInt(start, size);
+  }
+
+  /**
+   * Flush the current segment to the disk and stop journaling
+   */
+  public synchronized void close() {
+    closed = true;
+    if (segment != null) {
+      segment.force();
+      segment = null;
+    }
+  }
+
+  // Map the next segment, big enough for a record of the given size
+  private void roll(int recordSize) throws IOException {
+    if (segment != null) {
+      segment.force();
+    }
+    int size = Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize);
+    Path path = directory.resolve(name(++segmentIndex));
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // The mapping outlives the channel
+      segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+    segment.putInt(MAGIC);
+    segment.putInt(VERSION);
+    System.out.println("Heatmap journal segment created: " + path);
+  }
+
+  /**
+   * Check a segment's header
+   *
+   * @param segment Segment mapped, positioned at its start
+   * @return true if the segment can be read
+   */
+  static boolean valid(ByteBuffer segment) {
+    return segment.remaining() >= SEGMENT_HEADER_SIZE && segment.getInt() == MAGIC && segment.getInt() == VERSION;
+  }
+
+  /**
+   * List the segment files of a directory, in writing order
+   *
+   * @param directory Directory of the journal
+   * @return the paths of the segments
+   * @throws IOException if the directory cannot be read
+   */
+  static List<Path> segments(Path directory) throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+      for (Path file : files) {
+        if (index(file) > 0) {
+          segments.add(file);
+        }
+      }
+    }
+    segments.sort(Comparator.comparingInt(HeatmapJournal::index));
+    return segments;
+  }
+
+  private static String name(int index) {
+    return String.format("%s%06d%s", PREFIX, index, SUFFIX);
+  }
+
+  // Index of a segment file, 0 if not a segment
+  private static int index(Path segment) {
+    String name = segment.getFileName().toString();
+    try {
+      return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      return 0;
+    }
+  }
+}
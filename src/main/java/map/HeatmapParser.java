@@ -0,0 +1,173 @@
+package map;
+
+/**
+ * Scanner of the "lat,lon,level" lines of the supplier's messages. It reads
+ * each character of a body once, in place, and hands over each valid line
+ * as primitive fixed-point values (see Frames): no line, field or number
+ * object is created.
+ *
+ * A line is valid when it holds, separated by commas and optionally
+ * surrounded by blanks, a latitude within [-90, 90] and a longitude within
+ * [-180, 180] in decimal degrees (sign, digits, optional fraction rounded
+ * to the nearest millionth) and a level within [0, 127]. Other non-blank
+ * lines are malformed: they are skipped and counted.
+ */
+public class HeatmapParser {
+
+  /**
+   * Receiver of the cells parsed
+   */
+  public interface Cells {
+    /**
+     * Take a cell
+     *
+     * @param lat Fixed-point latitude
+     * @param lon Fixed-point longitude
+     * @param level Risk level
+     */
+    void add(int lat, int lon, byte level);
+  }
+
+  private static final long SCALE = (long) Frames.SCALE;
+  private static final long MAX_LAT = 90 * SCALE;
+  private static final long MAX_LON = 180 * SCALE;
+  // Digits kept in the integer part: enough for any coordinate and level, no overflow
+  private static final int MAX_INTEGER_DIGITS = 4;
+  // Digits of the fraction kept, one per decimal place of SCALE
+  private static final int FRACTION_DIGITS = 6;
+  // Value of a malformed field
+  private static final long INVALID = Long.MIN_VALUE;
+
+  private final CharSequence body;
+  private final int length;
+  private int pos;
+
+  private HeatmapParser(CharSequence body) {
+    this.body = body;
+    this.length = body.length();
+  }
+
+  /**
+   * Parse the lines of a supplier message
+   *
+   * @param body Message body
+   * @param cells Receiver of the valid lines' cells, in order
+   * @return the number of malformed lines
+   */
+  public static int parse(CharSequence body, Cells cells) {
+    return new HeatmapParser(body).lines(cells);
+  }
+
+  private int lines(Cells cells) {
+    int malformed = 0;
+    while (pos < length) {
+      skipBlanks();
+      if (pos == length || body.charAt(pos) == '\n') {
+        // Blank line
+        pos++;
+        continue;
+      }
+      long lat = coordinate(MAX_LAT);
+      long lon = lat == INVALID || !comma() ? INVALID : coordinate(MAX_LON);
+      long level = lon == INVALID || !comma() ? INVALID : level();
+      if (level != INVALID && endOfLine()) {
+        cells.add((int) lat, (int) lon, (byte) level);
+      } else {
+        malformed++;
+      }
+      skipLine();
+    }
+    return malformed;
+  }
+
+  // Signed decimal degrees within [-max, max], as fixed-point
+  private long coordinate(long max) {
+    skipBlanks();
+    char sign = pos < length ? body.charAt(pos) : 0;
+    if (sign == '-' || sign == '+') {
+      pos++;
+    }
+    int start = pos;
+    long integer = digits(MAX_INTEGER_DIGITS);
+    if (integer == INVALID) {
+      return INVALID;
+    }
+    int integerDigits = pos - start;
+    long fraction = 0;
+    int fractionDigits = 0;
+    boolean roundUp = false;
+    if (pos < length && body.charAt(pos) == '.') {
+      pos++;
+      for (char c; pos < length && (c = body.charAt(pos)) >= '0' && c <= '9'; pos++, fractionDigits++) {
+        if (fractionDigits < FRACTION_DIGITS) {
+          fraction = fraction * 10 + (c - '0');
+        } else if (fractionDigits == FRACTION_DIGITS) {
+          roundUp = c >= '5';
+        }
+      }
+    }
+    if (integerDigits == 0 && fractionDigits == 0) {
+      return INVALID;
+    }
+    for (int i = fractionDigits; i < FRACTION_DIGITS; i++) {
+      fraction *= 10;
+    }
+    long value = integer * SCALE + fraction + (roundUp ? 1 : 0);
+    if (value > max) {
+      return INVALID;
+    }
+    skipBlanks();
+    return sign == '-' ? -value : value;
+  }
+
+  private long level() {
+    skipBlanks();
+    int start = pos;
+    long level = digits(MAX_INTEGER_DIGITS);
+    if (level == INVALID || pos == start || level > Byte.MAX_VALUE) {
+      return INVALID;
+    }
+    return level;
+  }
+
+  // Unsigned integer of at most maxDigits digits, 0 if none
+  private long digits(int maxDigits) {
+    long value = 0;
+    int start = pos;
+    for (char c; pos < length && (c = body.charAt(pos)) >= '0' && c <= '9'; pos++) {
+      if (pos - start == maxDigits) {
+        return INVALID;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private boolean comma() {
+    if (pos < length && body.charAt(pos) == ',') {
+      pos++;
+      return true;
+    }
+    return false;
+  }
+
+  // Blanks (and a carriage return) may end a line
+  private boolean endOfLine() {
+    skipBlanks();
+    return pos == length || body.charAt(pos) == '\n';
+  }
+
+  private void skipBlanks() {
+    for (char c; pos < length && ((c = body.charAt(pos)) == ' ' || c == '\t' || c == '\r'); ) {
+      pos++;
+    }
+  }
+
+  // Move past the end of the current line
+  private void skipLine() {
+    while (pos < length && body.charAt(pos) != '\n') {
+      pos++;
+    }
+    pos++;
+  }
+}
@@ -0,0 +1,224 @@
+package map;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Multi-resolution aggregation of the heatmap, for the clients showing a
+ * large area of the map.
+ *
+ * Tier 0 splits the map into square tiles of BASE_DEGREES, each following
+ * tier doubles the tiles' side. A tile counts its cells by level and its
+ * level is the aggregate (max, min or mean) of theirs. Tiles are updated
+ * incrementally, by a single writer, as cells change; readers only see
+ * the tiles' aggregated level.
+ */
+public class HeatmapPyramid {
+
+  /**
+   * How the level of a tile is computed from the levels of its cells
+   */
+  public enum Aggregate {
+    MAX, MIN, MEAN;
+
+    /**
+     * Get the aggregate from its name
+     *
+     * @param name Name, case insensitive
+     * @param defaultValue Aggregate used when the name is unknown
+     * @return the aggregate
+     */
+    public static Aggregate parse(String name, Aggregate defaultValue) {
+      try {
+        return valueOf(name.trim().toUpperCase());
+      } catch (RuntimeException e) {
+        System.out.println("'" + name + "' is not a valid aggregate! Using the default value: " + defaultValue);
+        return defaultValue;
+      }
+    }
+  }
+
+  // Side of the tiles of tier 0
+  public static final double BASE_DEGREES = 0.05;
+  public static final int TIERS = 8;
+  // Side of a tile on screen, in pixels, when choosing the tier of a zoom level
+  private static final int TILE_PIXELS = 32;
+
+  private static final int MIN_LAT = -90_000_000;
+  private static final int MIN_LON = -180_000_000;
+
+  private static final class Tile {
+    final int south;
+    final int west;
+    // Number of cells by level, writer only
+    int[] counts = new int[4];
+    int cells;
+    long sum;
+    volatile byte level;
+
+    Tile(int south, int west) {
+      this.south = south;
+      this.west = west;
+    }
+  }
+
+  private final Aggregate aggregate;
+  // First zoom level showing the cells themselves
+  private final int cellZoom;
+  // Fixed-point side of the tiles of each tier
+  private final int[] sizes = new int[TIERS];
+  private final Map<Long, Tile>[] tiers;
+
+  /**
+   * Create an empty pyramid
+   *
+   * @param aggregate How a tile's level is computed
+   * @param cellZoom First zoom level showing the cells themselves
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public HeatmapPyramid(Aggregate aggregate, int cellZoom) {
+    this.aggregate = aggregate;
+    this.cellZoom = cellZoom;
+    this.tiers = new Map[TIERS];
+    for (int tier = 0; tier < TIERS; tier++) {
+      sizes[tier] = Frames.toFixed(BASE_DEGREES) << tier;
+      tiers[tier] = new ConcurrentHashMap<>();
+    }
+  }
+
+  /**
+   * Move a cell from one level to another. Writer thread only.
+   *
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   * @param previous Previous level of the cell, -1 if new
+   * @param level New level of the cell (unsigned)
+   * @param changed Tiles whose level changed, by tier; batches are created when needed
+   */
+  public void update(int lat, int lon, int previous, int level, HeatmapBatch[] changed) {
+    for (int tier = 0; tier < TIERS; tier++) {
+      int size = sizes[tier];
+      int row = (int) (((long) lat - MIN_LAT) / size);
+      int column = (int) (((long) lon - MIN_LON) / size);
+      Long key = HeatmapGrid.key(row, column);
+      Tile tile = tiers[tier].get(key);
+      boolean added = tile == null;
+      if (added) {
+        tile = new Tile((int) (MIN_LAT + (long) row * size), (int) (MIN_LON + (long) column * size));
+      }
+      if (previous >= 0) {
+        tile.counts[previous]--;
+        tile.sum -= previous;
+        tile.cells--;
+      }
+      if (level >= tile.counts.length) {
+        tile.counts = Arrays.copyOf(tile.counts, level + 1);
+      }
+      tile.counts[level]++;
+      tile.sum += level;
+      tile.cells++;
+      byte aggregated = aggregate(tile);
+      if (added || aggregated != tile.level) {
+        tile.level = aggregated;
+        if (added) {
+          // Only visible to the readers once its level is set
+          tiers[tier].put(key, tile);
+        }
+        if (changed[tier] == null) {
+          changed[tier] = new HeatmapBatch(16);
+        }
+        changed[tier].add(tile.south, tile.west, aggregated);
+      }
+    }
+  }
+
+  private byte aggregate(Tile tile) {
+    switch (aggregate) {
+      case MIN:
+        for (int level = 0; level < tile.counts.length; level++) {
+          if (tile.counts[level] > 0) {
+            return (byte) level;
+          }
+        }
+        return 0;
+      case MEAN:
+        return (byte) Math.round(tile.sum / (double) tile.cells);
+      default:
+        for (int level = tile.counts.length - 1; level > 0; level--) {
+          if (tile.counts[level] > 0) {
+            return (byte) level;
+          }
+        }
+        return 0;
+    }
+  }
+
+  /**
+   * Choose the resolution matching a zoom level: tiles about TILE_PIXELS wide on screen
+   *
+   * @param zoom Map zoom level
+   * @return the tier, -1 for the cells themselves
+   */
+  public int tierFor(int zoom) {
+    if (zoom >= cellZoom) {
+      return -1;
+    }
+    // Degrees covered by TILE_PIXELS at this zoom (256-pixel map tiles)
+    double degrees = 360d / (1L << Math.max(0, Math.min(zoom, 30))) * TILE_PIXELS / 256;
+    for (int tier = 0; tier < TIERS; tier++) {
+      if (Frames.toDegrees(sizes[tier]) >= degrees) {
+        return tier;
+      }
+    }
+    return TIERS - 1;
+  }
+
+  /**
+   * Get the side of the tiles of a tier
+   *
+   * @param tier Tier
+   * @return the fixed-point side
+   */
+  public int tileSize(int tier) {
+    return sizes[tier];
+  }
+
+  /**
+   * Get the tiles of a tier touching an area, except the ones touching another area
+   *
+   * @param tier Tier
+   * @param area Area of the tiles
+   * @param except Area of the tiles left out, null if none
+   * @return the south-west corner and level of each tile
+   */
+  public HeatmapBatch tilesIn(int tier, Viewport area, Viewport except) {
+    HeatmapBatch tiles = new HeatmapBatch(256);
+    int size = sizes[tier];
+    for (Tile tile : tiers[tier].values()) {
+      if (area.intersects(tile.south, tile.west, size) && (except == null || !except.intersects(tile.south, tile.west, size))) {
+        tiles.add(tile.south, tile.west, tile.level);
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Keep the tiles touching an area
+   *
+   * @param tier Tier of the tiles
+   * @param tiles South-west corner and level of each tile
+   * @param area Area kept
+   * @return the tiles kept, the given ones if they all are
+   */
+  public HeatmapBatch within(int tier, HeatmapBatch tiles, Viewport area) {
+    int size = sizes[tier];
+    HeatmapBatch kept = new HeatmapBatch(Math.max(16, tiles.size()));
+    for (int i = 0; i < tiles.size(); i++) {
+      if (area.intersects(tiles.lat(i), tiles.lon(i), size)) {
+        kept.add(tiles.lat(i), tiles.lon(i), tiles.level(i));
+      }
+    }
+    return kept.size() == tiles.size() ? tiles : kept;
+  }
+}
@@ -0,0 +1,256 @@
+package map;
+
+import qm.Settings;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latest risk level of every heatmap cell known to the server.
+ *
+ * Batches are applied by a single writer. Each batch that changes at least
+ * one cell produces a Delta moving the state from one version to the next,
+ * so a client that has received every delta up to version V only needs the
+ * deltas starting at V. Any other client gets a snapshot (resync).
+ * The frames of a delta are encoded once, for every client sent it.
+ */
+public class HeatmapState {
+
+  /**
+   * Cells changed between two versions of the state
+   */
+  public static class Delta {
+    private final long from;
+    private final long to;
+    private final HeatmapBatch cells;
+
+    // Tiles whose level changed, by tier of the pyramid
+    private final HeatmapBatch[] tiles;
+    // Times of the supplier message, null for snapshots and resyncs
+    private final Freshness freshness;
+    // Flags of the frames (see Frames)
+    private final int flags;
+    // Frames shared by the clients, encoded when first needed
+    private volatile byte[] frame;
+    private final AtomicReferenceArray<byte[]> tileFrames = new AtomicReferenceArray<>(HeatmapPyramid.TIERS);
+
+    Delta(long from, long to, HeatmapBatch cells, HeatmapBatch[] tiles, Freshness freshness, int flags) {
+      this.from = from;
+      this.to = to;
+      this.cells = cells;
+      this.tiles = tiles;
+      this.freshness = freshness;
+      this.flags = flags;
+    }
+
+    // Version the delta applies to
+    public long from() {
+      return from;
+    }
+
+    // Version reached once applied
+    public long to() {
+      return to;
+    }
+
+    public HeatmapBatch cells() {
+      return cells;
+    }
+
+    public Freshness freshness() {
+      return freshness;
+    }
+
+    /**
+     * Get the tiles whose level changed
+     *
+     * @param tier Tier of the pyramid
+     * @return the south-west corner and level of the tiles, null if none
+     */
+    public HeatmapBatch tiles(int tier) {
+      return tiles == null ? null : tiles[tier];
+    }
+
+    /**
+     * Get the frame of the cells, encoded once for all the clients.
+     * The frame is shared: it must not be modified.
+     *
+     * @return the heatmap frame
+     */
+    public byte[] frame() {
+      byte[] encoded = frame;
+      if (encoded == null) {
+        synchronized (this) {
+          if (frame == null) {
+            frame = Frames.heatmap(cells, flags);
+            Meters.ENCODED.increment();
+          }
+          encoded = frame;
+        }
+      }
+      return encoded;
+    }
+
+    /**
+     * Get the frame of the tiles whose level changed, encoded once for all
+     * the clients. The frame is shared: it must not be modified.
+     *
+     * @param tier Tier of the pyramid
+     * @param side Side of the tier's tiles (see HeatmapPyramid)
+     * @return the tiles frame, null if no tile changed
+     */
+    public byte[] tilesFrame(int tier, int side) {
+      HeatmapBatch changed = tiles(tier);
+      if (changed == null || changed.size() == 0) {
+        return null;
+      }
+      byte[] encoded = tileFrames.get(tier);
+      if (encoded == null) {
+        synchronized (this) {
+          if (tileFrames.get(tier) == null) {
+            tileFrames.set(tier, Frames.tiles(changed, side, flags));
+            Meters.ENCODED.increment();
+          }
+          encoded = tileFrames.get(tier);
+        }
+      }
+      return encoded;
+    }
+  }
+
+  // Level and version of each cell
+  private final HeatmapGrid grid = new HeatmapGrid(Settings.getInt("HEATMAP_EXPECTED_CELLS", 32768));
+  // Cells by area, for the clients showing part of the map
+  private final CellIndex index = new CellIndex(Settings.getDouble("HEATMAP_INDEX_BUCKET_DEGREES", 0.25));
+  // Levels of detail, for the clients showing a large area
+  private final HeatmapPyramid pyramid = new HeatmapPyramid(
+    HeatmapPyramid.Aggregate.parse(Settings.get("HEATMAP_LOD_AGGREGATE", "max"), HeatmapPyramid.Aggregate.MAX),
+    Settings.getInt("HEATMAP_LOD_CELL_ZOOM", 9));
+  private volatile long version;
+  // Latest snapshot taken, shared by the clients joining until the next change
+  private volatile Delta latest;
+  // Time the last batch was applied
+  private volatile long lastUpdate;
+
+  /**
+   * Apply the given cells. Single writer only.
+   *
+   * @param batch Cells received from the supplier
+   * @return the cells whose level changed, null if none did
+   */
+  public Delta apply(HeatmapBatch batch) {
+    lastUpdate = System.currentTimeMillis();
+    long from = version;
+    HeatmapBatch changed = new HeatmapBatch(batch.size());
+    HeatmapBatch[] tiles = new HeatmapBatch[HeatmapPyramid.TIERS];
+    for (int i = 0; i < batch.size(); i++) {
+      int level = batch.level(i) & 0xFF;
+      int previous = grid.update(batch.lat(i), batch.lon(i), batch.level(i), from + 1);
+      if (previous != level) {
+        changed.add(batch.lat(i), batch.lon(i), batch.level(i));
+        if (previous < 0) {
+          index.add(batch.lat(i), batch.lon(i));
+        }
+        pyramid.update(batch.lat(i), batch.lon(i), previous, level, tiles);
+      }
+    }
+    if (changed.size() == 0) {
+      return null;
+    }
+    // Publish the new version once all its cells are in the grid
+    version = from + 1;
+    return new Delta(from, from + 1, changed, tiles, batch.freshness(), 0);
+  }
+
+  /**
+   * Get every cell. Changes applied while taking the snapshot may or may not
+   * be included; they are included in the deltas following the snapshot's version.
+   * The same snapshot is returned until the state changes.
+   *
+   * @return a delta from version 0 to the snapshot's version, with the SNAPSHOT flag
+   */
+  public Delta snapshot() {
+    Delta snapshot = latest;
+    if (snapshot == null || snapshot.to() != version) {
+      snapshot = scan(0, Frames.SNAPSHOT);
+      latest = snapshot;
+    }
+    return snapshot;
+  }
+
+  /**
+   * Get the cells changed after the given version (dirty scan). Changes applied
+   * while scanning may or may not be included; they are included in the deltas
+   * following the returned version.
+   *
+   * @param since Version already known by the caller
+   * @return a delta from the version given to the current one
+   */
+  public Delta changedSince(long since) {
+    return scan(since, 0);
+  }
+
+  private Delta scan(long since, int flags) {
+    long at = version;
+    HeatmapBatch cells = new HeatmapBatch(Math.max(16, since == 0 ? grid.size() : 256));
+    grid.forEachChangedSince(since, (lat, lon, level, cellVersion) -> cells.add(lat, lon, level));
+    return new Delta(since, at, cells, null, null, flags);
+  }
+
+  /**
+   * Get the current level of the cells in an area, except the ones in another area
+   * (dirty read, as changedSince)
+   *
+   * @param area Area of the cells
+   * @param except Area of the cells left out, null if none
+   * @return the cells
+   */
+  public HeatmapBatch cellsIn(Viewport area, Viewport except) {
+    HeatmapBatch cells = new HeatmapBatch(256);
+    index.forEachIn(area, except, (lat, lon) -> {
+      int level = grid.level(lat, lon);
+      if (level >= 0) {
+        cells.add(lat, lon, (byte) level);
+      }
+    });
+    return cells;
+  }
+
+  /**
+   * Get the tiles of a tier of the pyramid touching an area, except the ones
+   * touching another area (dirty read, as changedSince)
+   *
+   * @param tier Tier of the pyramid
+   * @param area Area of the tiles
+   * @param except Area of the tiles left out, null if none
+   * @return the south-west corner and level of each tile
+   */
+  public HeatmapBatch tilesIn(int tier, Viewport area, Viewport except) {
+    return pyramid.tilesIn(tier, area, except);
+  }
+
+  public HeatmapPyramid pyramid() {
+    return pyramid;
+  }
+
+  public long version() {
+    return version;
+  }
+
+  /**
+   * Get the number of cells known
+   *
+   * @return the number of cells
+   */
+  public int size() {
+    return grid.size();
+  }
+
+  /**
+   * Get the time the last batch was applied
+   *
+   * @return epoch milliseconds, 0 if none
+   */
+  public long lastUpdate() {
+    return lastUpdate;
+  }
+}
@@ -0,0 +1,122 @@
+package map;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of the heatmap batches recorded by a HeatmapJournal, fed to Lab 1
+ * in place of the supplier's queue. Batches are paced by the times they
+ * were received: at the recorded pace, N times faster, or as fast as they
+ * are requested.
+ */
+public class JournalReplay {
+
+  // Utility class
+  private JournalReplay() {}
+
+  /**
+   * A batch read from a journal, with the time it was received
+   */
+  private static class Record {
+    final long received;
+    final HeatmapBatch batch;
+
+    Record(long received, HeatmapBatch batch) {
+      this.received = received;
+      this.batch = batch;
+    }
+  }
+
+  /**
+   * Create a cold flux of the batches of a journal, completing after the
+   * last one. Each subscription replays the whole journal from its start.
+   *
+   * @param directory Directory of the journal's segment files
+   * @param speed 1 for the recorded pace, N for N times faster, 0 or less for no pacing
+   * @return the flux of batches, with their times starting when emitted
+   */
+  public static Flux<HeatmapBatch> batches(String directory, double speed) {
+    return Flux.defer(() -> {
+      Flux<Record> records;
+      try {
+        records = Flux.fromIterable(HeatmapJournal.segments(Paths.get(directory)))
+          .concatMap(JournalReplay::records, 1);
+      } catch (IOException e) {
+        return Flux.error(e);
+      }
+      if (speed <= 0) {
+        return records.map(JournalReplay::emit);
+      }
+      // Recorded time of the first batch, and when it was replayed
+      long[] start = new long[2];
+      return records.concatMap(record -> {
+        long now = System.nanoTime();
+        if (start[1] == 0) {
+          start[0] = record.received;
+          start[1] = now;
+        }
+        long due = start[1] + (long) (TimeUnit.MILLISECONDS.toNanos(record.received - start[0]) / speed);
+        return due <= now
+          ? Mono.fromSupplier(() -> emit(record))
+          : Mono.delay(Duration.ofNanos(due - now)).map(tick -> emit(record));
+      }, 1);
+    });
+  }
+
+  // Batches are timed from their replay on
+  private static HeatmapBatch emit(Record record) {
+    record.batch.setFreshness(Freshness.replayed());
+    return record.batch;
+  }
+
+  // Read the records of a segment, in writing order
+  private static Flux<Record> records(Path path) {
+    return Flux.generate(() -> map(path), (segment, sink) -> {
+      int start = segment.position();
+      int size = segment.remaining() >= 4 ? segment.getInt(start) : 0;
+      if (size == 0) {
+        // Past the last record
+        sink.complete();
+        return segment;
+      }
+      if (size < HeatmapJournal.RECORD_HEADER_SIZE || size > segment.remaining()) {
+        System.out.println("Corrupted heatmap journal segment " + path + " at " + start + ": skipping the rest of it");
+        sink.complete();
+        return segment;
+      }
+      segment.position(start + 4);
+      long received = segment.getLong();
+      int cells = segment.getInt();
+      if (HeatmapJournal.RECORD_HEADER_SIZE + (long) cells * Frames.HEATMAP_CELL_SIZE != size) {
+        System.out.println("Corrupted heatmap journal segment " + path + " at " + start + ": skipping the rest of it");
+        sink.complete();
+        return segment;
+      }
+      HeatmapBatch batch = new HeatmapBatch(cells);
+      for (int i = 0; i < cells; i++) {
+        batch.add(segment.getInt(), segment.getInt(), segment.get());
+      }
+      sink.next(new Record(received, batch));
+      return segment;
+    });
+  }
+
+  private static MappedByteBuffer map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (!HeatmapJournal.valid(segment)) {
+        throw new IOException("Not a heatmap journal segment: " + path);
+      }
+      return segment;
+    }
+  }
+}
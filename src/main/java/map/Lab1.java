@@ -3,27 +3,24 @@ package map;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.CloseStatus;
 
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sns.SnsClient;
-import software.amazon.awssdk.services.sns.model.SubscribeRequest;
-import software.amazon.awssdk.services.sns.model.ConfirmSubscriptionRequest;
-import software.amazon.awssdk.services.sns.model.UnsubscribeRequest;
-import software.amazon.awssdk.services.sqs.model.Message;
-
+import qm.AwsClients;
 import qm.QueueManager;
+import qm.QueueSource;
+import qm.QueueSource.Overflow;
+import qm.Settings;
 
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.UnicastProcessor;
 import reactor.core.scheduler.Schedulers;
 import reactor.core.Disposable;
+import reactor.core.Disposables;
 
-import static java.util.stream.Collectors.*;
-import java.util.function.BiConsumer;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 import java.io.IOException;
 
 public class Lab1 { // Singleton
@@ -35,19 +32,44 @@ public class Lab1 { // Singleton
   private static String subscriptionQueueURL;
   private static String subscriptionArn;
   
-  // Lambda used as callback when reading messages asynchronously. Static definition allows for self-reference.
-  private static BiConsumer<List<Message>, Throwable> consumeHeatmap;  
+  // Maximum number of receives kept in flight on the subscription queue
+  private static final int DEFAULT_MAX_POLLERS = 8;
+  // Number of messages requested ahead from the queue
+  private static final int PREFETCH = Settings.getInt("HEATMAP_PREFETCH", 20);
+  // Strategy and size (in batches) of the stage buffering events for each client
+  private static final Overflow CLIENT_OVERFLOW = Overflow.parse(Settings.get("HEATMAP_OVERFLOW", "buffer"), Overflow.BUFFER);
+  private static final int CLIENT_BUFFER = Settings.getInt("HEATMAP_CLIENT_BUFFER", 64);
+  
+  // Latest level of every cell
+  private final HeatmapState state = new HeatmapState();
+  
+  // Time without heatmap messages after which the supplier is considered stopped
+  private static final long SUPPLIER_IDLE_MILLIS = Settings.getInt("HEATMAP_SUPPLIER_IDLE_SECONDS", 30) * 1000L;
+  private long lastStartRequest;
   
-  // Flow of heatmap coordinates from the supplier
-  private ConnectableFlux<String> heatMapEvents;  
+  // Journal recording the batches received from the supplier, none if not set
+  private static final String JOURNAL_DIR = Settings.get("HEATMAP_JOURNAL_DIR", null);
+  private static final int JOURNAL_SEGMENT_MB = Settings.getInt("HEATMAP_JOURNAL_SEGMENT_MB", 64);
+  private volatile HeatmapJournal journal;
+  // Journal replayed in place of the supplier, none if not set
+  private static final String REPLAY_DIR = Settings.get("HEATMAP_REPLAY_DIR", null);
+  // 1: recorded pace, N: N times faster, 0: as fast as the flow goes
+  private static final double REPLAY_SPEED = Settings.getDouble("HEATMAP_REPLAY_SPEED", 1);
+  
+  // Flow of heatmap changes from the supplier, at most one delta per message
+  private ConnectableFlux<HeatmapState.Delta> heatMapEvents;  
   
   // Collections of clients' subscriptions
   private final Map<String, Disposable> CLIENTS = new ConcurrentHashMap<>();
+  // What each client was last sent, by client id
+  private final Map<String, ClientView> VIEWS = new ConcurrentHashMap<>();
   
   // private constructor
-  private Lab1() {}
+  private Lab1() {
+    Meters.sessions("1", VIEWS);
+  }
   
-  private static Lab1 instance;
+  private static volatile Lab1 instance;
   
   /**
    * Instantiate singleton and create resources required
@@ -58,21 +80,29 @@ public class Lab1 { // Singleton
     if (instance == null){
       synchronized (Lab1.class) {
         if (instance == null){
-          instance = new Lab1();
-          // Subscribe Supplier's topic
-          instance.subscribeSupplier();
-          // Register hook to clear up resources when exiting
-          Runtime.getRuntime().addShutdownHook(new Thread(){
-            public void run() { 
+          Lab1 lab1 = new Lab1();
+          if (REPLAY_DIR != null) {
+            // Recorded heatmap, no supplier
+            lab1.replayJournal();
+          } else {
+            // Subscribe Supplier's topic
+            lab1.subscribeSupplier();
+            // Register task to clear up resources when exiting, before the AWS clients get closed
+            AwsClients.onShutdown(() -> {
               System.out.println("TEAR DOWN!!!!!!");
+              if (lab1.journal != null) {
+                lab1.journal.close();
+              }
               try {
-                instance.unsubscribeSupplier();
+                lab1.unsubscribeSupplier();
               }catch(Exception e) {
                 System.out.println("Exception caught while trying unsubscribe Heatmap events producer...");
                 e.printStackTrace();
               }              
-            } 
-          });           
+            });           
+          }
+          // Only seen by the other clients once the flow is set up
+          instance = lab1;
         }
       }
     }
@@ -86,6 +116,10 @@ public class Lab1 { // Singleton
     */    
     private void subscribeSupplier() throws Exception
     {
+      if (QueueManager.inMemory()) {
+        // No AWS nor supplier application: simulate the supplier in process
+        HeatmapGenerator.start(HEATMAP_SUPPLIER_URL, SUPPLIER_TOPIC_ARN, DLQ_ARN);
+      }
       // Create Subscription queue for this consumer
       final String SUBSCRIPTION_QUEUE_NAME = "heatmp-queue-" + System.currentTimeMillis();
       
@@ -97,19 +131,9 @@ public class Lab1 { // Singleton
         e.printStackTrace();
         throw e;
       }
-      // Build the SNS client
-      SnsClient snsClient = SnsClient.builder()
-        .build();     
-      // Subscribe the Supplier's topic
+      // Subscribe the Supplier's topic, with raw message delivery
       try{      
-        subscriptionArn = snsClient.subscribe(SubscribeRequest.builder()
-                                                .topicArn(SUPPLIER_TOPIC_ARN)
-                                                .protocol("sqs")
-                                                .endpoint(QueueManager.getQueueARN(subscriptionQueueURL))
-                                                .attributes(new HashMap<String,String>(){{
-                                                    put("RawMessageDelivery", "true");}})
-                                                .build())
-          .subscriptionArn();
+        subscriptionArn = QueueManager.subscribe(SUPPLIER_TOPIC_ARN, subscriptionQueueURL);
         System.out.println("Subscription created... " + subscriptionArn);
       }catch( Exception e) {
         System.out.println("Exception caught while trying to subscribe the topic...");
@@ -130,44 +154,108 @@ public class Lab1 { // Singleton
         return false;
       } */
       
-      // Bridge between AWS asynchronous API and Reactive subscribers
-      final Flux<String> bridge = Flux.create(sink -> {
-        // Callback to flow the coordinates message to subscribers
-        consumeHeatmap = (msgs, err) -> {
-          if (msgs != null) {
-            // Get messages received and stream each line individually 
-            msgs.stream()
-              .map(Message::body)
-              .flatMap(Pattern.compile("\n")::splitAsStream)
-              //***************** DEBUG      
-              //.peek(System.out::println)
-              //*****************
-              .forEach(sink::next); // Flow coordinates to subscribed consumers
-            
-            // Register again the callback
-            QueueManager.getAsync(subscriptionQueueURL)
-              .whenComplete(consumeHeatmap);
+      if (JOURNAL_DIR != null) {
+        try {
+          long segmentSize = JOURNAL_SEGMENT_MB * 1024L * 1024L;
+          if (segmentSize > HeatmapJournal.MAX_SEGMENT_SIZE) {
+            System.out.println("HEATMAP_JOURNAL_SEGMENT_MB=" + JOURNAL_SEGMENT_MB + " is beyond what a segment can map, "
+                               + (HeatmapJournal.MAX_SEGMENT_SIZE >> 20) + " MB used instead");
+            segmentSize = HeatmapJournal.MAX_SEGMENT_SIZE;
           }
-          else if (err != null) {
-            // Print error on the console and signal the subscribers
-            err.printStackTrace();
-            sink.error(err);
+          journal = HeatmapJournal.open(JOURNAL_DIR, segmentSize);
+          System.out.println("Recording the heatmap batches received into the journal " + JOURNAL_DIR);
+        } catch(IOException e) {
+          System.out.println("Exception caught while trying to open the heatmap journal " + JOURNAL_DIR + ". Not recording!");
+          e.printStackTrace();
+        }
+      }
+      
+      // Bridge between AWS asynchronous API and Reactive subscribers.
+      // Receives are only issued when the subscribers have requested more messages.
+      final Flux<HeatmapBatch> bridge = QueueSource.messages(subscriptionQueueURL,
+                                                             Settings.getInt("HEATMAP_MAX_POLLERS", DEFAULT_MAX_POLLERS))
+        //***************** DEBUG      
+        //.doOnNext(msg -> System.out.println(msg.body()))
+        //*****************
+        // Parse the lines of each message once for all clients
+        .map(msg -> {
+          // The message's timestamps travel with its cells up to the clients' sockets
+          Freshness freshness = Freshness.of(msg);
+          long start = System.nanoTime();
+          HeatmapBatch batch = HeatmapBatch.parse(msg.body());
+          Meters.PARSE.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+          Meters.PARSED_LINES.increment(batch.size());
+          if (batch.malformed() > 0) {
+            Meters.MALFORMED_LINES.increment(batch.malformed());
           }
-        };
-        // Asunchronously poll the queue for coordinates registering a callback
-        QueueManager.getAsync(subscriptionQueueURL)
-          .whenComplete(consumeHeatmap);
-      });
+          batch.setFreshness(freshness);
+          if (journal != null) {
+            record(batch);
+          }
+          return batch;
+        });
+      publish(bridge);
+    }
+    
+   /**
+    * Replay the journal in place of the supplier. The heatmap stays as
+    * replayed after the journal's last batch.
+    */    
+    private void replayJournal()
+    {
+      System.out.println("Replaying the heatmap journal " + REPLAY_DIR + " at speed " + (REPLAY_SPEED > 0 ? REPLAY_SPEED : "max"));
+      publish(JournalReplay.batches(REPLAY_DIR, REPLAY_SPEED)
+                .doOnComplete(() -> System.out.println("Heatmap journal replayed: " + REPLAY_DIR))
+                .concatWith(Flux.never()));
+    }
+    
+   /**
+    * Apply the batches to the heatmap and start publishing its changes
+    * 
+    * @param batches Cells received, one batch per message
+    */    
+    private void publish(Flux<HeatmapBatch> batches)
+    {
+      final Flux<HeatmapState.Delta> deltas = batches
+        // Only flow the cells whose level changed
+        .<HeatmapState.Delta>handle((batch, sink) -> {
+          HeatmapState.Delta delta = state.apply(batch);
+          batch.freshness().parsed();
+          if (delta != null) {
+            sink.next(delta);
+          }
+        })
+        // Print error on the console before signalling the subscribers
+        .doOnError(Throwable::printStackTrace);
       // Set up the Flow and start emitting heatmap events
-      heatMapEvents = bridge
+      heatMapEvents = deltas
         //***************** DEBUG      
         //.log()
         //*****************
         .subscribeOn(Schedulers.parallel())
-        .publish();
+        .publish(PREFETCH);
+      // Keep the latest state current even when no client is connected
+      heatMapEvents.subscribe();
       heatMapEvents.connect();
     }
 
+   /**
+    * Write a batch into the journal. Stops recording if the journal cannot grow.
+    * 
+    * @param batch Cells received, with their times
+    */    
+    private void record(HeatmapBatch batch)
+    {
+      try {
+        journal.append(batch.freshness().received(), batch);
+      } catch(IOException e) {
+        System.out.println("Exception caught while trying to write into the heatmap journal " + JOURNAL_DIR + ". Recording stopped!");
+        e.printStackTrace();
+        journal.close();
+        journal = null;
+      }
+    }
+    
    /**
     * Clear up this application's queue and subscription to the Supplier
     * 
@@ -175,14 +263,9 @@ public class Lab1 { // Singleton
     */    
     private void unsubscribeSupplier() throws Exception
     {
-      // Build the SNS client
-      SnsClient snsClient = SnsClient.builder()
-        .build();     
       // Unsubscribe the Supplier's topic
       try{      
-        snsClient.unsubscribe(UnsubscribeRequest.builder()
-                              .subscriptionArn(subscriptionArn)
-                              .build());
+        QueueManager.unsubscribe(subscriptionArn);
         System.out.println("Subscription deleted... " + subscriptionArn);
       }catch(Exception e) {
         System.out.println("Exception caught while trying to unsubscribe the topic...");
@@ -200,34 +283,63 @@ public class Lab1 { // Singleton
       }
     }
           
+   /**
+    * Ask the supplier to start sending the heatmap, unless it has been
+    * sending it recently or was asked to start recently
+    * 
+    * @throws Exception
+    */    
+    private void startSupplier() throws Exception
+    {
+      if (REPLAY_DIR != null) {
+        // No supplier
+        return;
+      }
+      long now = System.currentTimeMillis();
+      synchronized (this) {
+        if (now - state.lastUpdate() < SUPPLIER_IDLE_MILLIS || now - lastStartRequest < SUPPLIER_IDLE_MILLIS) {
+          return;
+        }
+        lastStartRequest = now;
+      }
+      QueueManager.put(HEATMAP_SUPPLIER_URL, "start");
+      System.out.println("Heatmap supplier started");
+    }
+    
    /**
     * Subscribe the given client to receive heatmap events
     * 
     * @param session Client's WebSocket
     */    
     public void subscribeClient(WebSocketSession session) {
-      try {
-        // Send start command to supplier
-        QueueManager.put(HEATMAP_SUPPLIER_URL, "start");
+      //***************** DEBUG
+      System.out.println("LAB 1 - NEW CLIENT CONNECTED!!! " + session.getId());
+      //*****************
+      SessionWriter writer = WsPacket.writer(session);
+      if (writer == null) {
+        System.out.println("Lab 1 finished. Socket " + session.getId() + " closed!");
+        return;
+      }
+      // Registered before subscribing: the latest heatmap may be sent, and the
+      // socket found closed, before subscribe() returns
+      Disposable.Swap subscription = Disposables.swap();
+      CLIENTS.put(session.getId(), subscription);
+      // subscribing for Heat Map events
+      subscription.update(frames(session.getId(), writer::dropped, false)
         //***************** DEBUG
-        System.out.println("LAB 1 - NEW CLIENT CONNECTED!!! " + session.getId());
+        //.log()
         //*****************
-        // subscribing for Heat Map events
-        Disposable subscription = heatMapEvents
+        .subscribe(frame -> {
           //***************** DEBUG
-          //.log()
-          //*****************
-          .subscribe(event -> {
-          //***************** DEBUG
-          //System.out.println("Sending: " + event);
+          //System.out.println("Sending " + frame.length + " bytes");
           //*****************              
-          if (!WsPacket.send(session, "m1," + event)){
+          if (!WsPacket.send(session, frame)){
             // Client socket is closed. 
             System.out.println("Lab 1 finished. Socket " + session.getId() + " closed!");
             // Unsubscribe the Flux to stopping receiving events
-            CLIENTS.get(session.getId()).dispose();
+            subscription.dispose();
             // remove client from the list of clients
-            CLIENTS.remove(session.getId());
+            CLIENTS.remove(session.getId(), subscription);
             //***************** DEBUG
             System.out.println("SUBSCRIPTION REMOVED FROM THE LIST OF CLIENTS...");
             System.out.println("Lab1: Total number of clients: " + CLIENTS.size());
@@ -245,22 +357,218 @@ public class Lab1 { // Singleton
             e.printStackTrace();
           }
           // remove client from the list of clients
-          CLIENTS.remove(session.getId());
+          CLIENTS.remove(session.getId(), subscription);
           //***************** DEBUG
           System.out.println("SUBSCRIPTION REMOVED FROM THE LIST OF CLIENTS...");
           System.out.println("Lab1: Total number of clients: " + CLIENTS.size());
           //*****************                
+        }));
+      //***************** DEBUG
+      System.out.println("SUBSCRIPTION ADDED TO THE LIST OF CLIENTS...");
+      System.out.println("Lab1: Total number of clients: " + CLIENTS.size());
+      //*****************                      
+    }
+    
+   /**
+    * Get the frames to be sent to a client, starting with the latest known
+    * heatmap. Subscribing starts the supplier if needed; the flow follows
+    * the client's viewport until it is cancelled.
+    * 
+    * @param clientId Client's identifier
+    * @param dropped Number of frames discarded so far on the way to the client, 0 if none can be
+    * @param paced true if the subscriber only requests the frames its socket can take: the client's
+    *              overflow stage then drops deltas rather than slowing the heatmap down for every client
+    * @return the flux of frames
+    */    
+    public Flux<byte[]> frames(String clientId, LongSupplier dropped, boolean paced) {
+      return Flux.defer(() -> {
+        try {
+          // Send start command to supplier, unless it is already supplying the heatmap
+          startSupplier();
+        }
+        catch(Exception e) {
+          System.out.println("Exception caught while trying to write into the queue: " + HEATMAP_SUPPLIER_URL);
+          e.printStackTrace();
+        }
+        // What this client was last sent
+        final ClientView view = new ClientView(dropped);
+        VIEWS.put(clientId, view);
+        // Paint the latest known heatmap straight away
+        Flux<byte[]> latest = Flux.defer(() -> {
+          synchronized (view) {
+            return state.size() > 0 ? Flux.just(view.snapshot()) : Flux.<byte[]>empty();
+          }
         });
-        // Register this client's subscription
-        CLIENTS.put(session.getId(), subscription);
-        //***************** DEBUG
-        System.out.println("SUBSCRIPTION ADDED TO THE LIST OF CLIENTS...");
-        System.out.println("Lab1: Total number of clients: " + CLIENTS.size());
-        //*****************                      
+        // A stalled socket must not hold the shared flow back: the deltas it misses are resent as one
+        Overflow overflow = paced && CLIENT_OVERFLOW == Overflow.BUFFER ? Overflow.DROP_OLDEST : CLIENT_OVERFLOW;
+        Flux<byte[]> changes = overflow.apply(heatMapEvents, CLIENT_BUFFER, Schedulers.parallel(),
+                                              delta -> Meters.dropped("overflow"))
+          .handle((delta, sink) -> {
+            // Not interleaved with the cells sent when the viewport changes
+            synchronized (view) {
+              byte[] frame = view.frameFor(delta);
+              // null: already covered by a snapshot, or out of the client's viewport
+              if (frame != null) {
+                sink.next(frame);
+                if (delta.freshness() != null) {
+                  delta.freshness().written();
+                }
+              }
+            }
+          });
+        return latest.concatWith(Flux.merge(changes, view.exposed))
+          .doFinally(signal -> {
+            VIEWS.remove(clientId);
+            Meters.disposed("1", signal);
+          });
+      });
+    }
+    
+   /**
+    * Only send the given client the cells in its viewport, starting with the
+    * ones it has not been sent yet
+    * 
+    * @param clientId Client's identifier
+    * @param viewport Area of the map shown by the client
+    */    
+    public void updateViewport(String clientId, Viewport viewport) {
+      ClientView view = VIEWS.get(clientId);
+      if (view == null) {
+        return;
+      }
+      synchronized (view) {
+        byte[] frame = view.moveTo(viewport);
+        if (frame != null) {
+          view.exposedSink.next(frame);
+        }
+      }
+    }
+    
+   /**
+    * Version, area and level of detail of the heatmap a client has been sent.
+    * Callers synchronize on the view.
+    */    
+    private class ClientView {
+      private final LongSupplier writerDrops;
+      // -1 until the client gets its first snapshot
+      private long version = -1;
+      private long dropped;
+      // Cells sent when the viewport changes
+      private final UnicastProcessor<byte[]> exposed = UnicastProcessor.create();
+      private final FluxSink<byte[]> exposedSink = exposed.sink();
+      // null until the client tells its viewport: the whole map
+      private Viewport viewport;
+      // Tier of the pyramid matching the client's zoom, -1 for the cells themselves
+      private int tier = -1;
+      
+      ClientView(LongSupplier writerDrops) {
+        this.writerDrops = writerDrops;
+        this.dropped = writerDrops.getAsLong();
+      }
+      
+     /**
+      * Build the frame bringing the client up to date with the given delta
+      * 
+      * @param delta Next change of the heatmap
+      * @return the frame to be sent, null if the client is already up to date
+      */    
+      byte[] frameFor(HeatmapState.Delta delta) {
+        if (writerDrops.getAsLong() != dropped) {
+          // Frames were discarded by the client's outbound queue: resync
+          dropped = writerDrops.getAsLong();
+          version = -1;
+        }
+        if (delta.to() <= version) {
+          return null;
+        }
+        if (delta.from() == version) {
+          version = delta.to();
+          return tier < 0 ? frame(delta) : tilesFrame(delta);
+        }
+        if (version < 0 || tier >= 0) {
+          // First delta received or frames were lost: resync with every cell.
+          // Tiles are few: resync them all
+          return snapshot();
+        }
+        // Deltas were skipped by the overflow stage: only send the cells changed since
+        HeatmapState.Delta changes = state.changedSince(version);
+        version = changes.to();
+        return frame(changes);
+      }
+      
+     /**
+      * Build a frame with every cell or tile in the viewport, bringing the client up to date
+      * 
+      * @return the frame to be sent
+      */    
+      byte[] snapshot() {
+        if (viewport == null) {
+          // Shared by the clients joining before the next change
+          HeatmapState.Delta snapshot = state.snapshot();
+          version = snapshot.to();
+          return snapshot.frame();
+        }
+        // Changes applied while scanning are included in the following deltas
+        version = state.version();
+        if (tier >= 0) {
+          return Frames.tiles(state.tilesIn(tier, viewport, null), state.pyramid().tileSize(tier), Frames.SNAPSHOT);
+        }
+        return Frames.heatmap(state.cellsIn(viewport, null), Frames.SNAPSHOT);
+      }
+      
+     /**
+      * Change the viewport
+      * 
+      * @param next Area of the map now shown by the client
+      * @return the frame with the cells or tiles newly exposed, null if none
+      */    
+      byte[] moveTo(Viewport next) {
+        Viewport previous = viewport;
+        int previousTier = tier;
+        viewport = next;
+        tier = state.pyramid().tierFor(next.zoom());
+        if (version < 0) {
+          // Nothing sent yet
+          return null;
+        }
+        if (tier != previousTier) {
+          // New level of detail: replace what the client shows
+          return snapshot();
+        }
+        if (previous == null) {
+          // Every cell was sent
+          return null;
+        }
+        if (tier >= 0) {
+          HeatmapBatch exposed = state.tilesIn(tier, next, previous);
+          return exposed.size() == 0 ? null : Frames.tiles(exposed, state.pyramid().tileSize(tier), 0);
+        }
+        HeatmapBatch exposed = state.cellsIn(next, previous);
+        return exposed.size() == 0 ? null : Frames.heatmap(exposed);
+      }
+      
+      // Frame with the delta's cells in the viewport, null if none. The delta's
+      // own frame, shared with the other clients, when they are all in it
+      private byte[] frame(HeatmapState.Delta delta) {
+        HeatmapBatch cells = viewport == null ? delta.cells() : delta.cells().within(viewport);
+        if (cells == delta.cells()) {
+          return delta.frame();
+        }
+        return cells.size() == 0 ? null : Frames.heatmap(cells);
+      }
+      
+      // Frame with the delta's tiles in the viewport, null if none. Shared as the cells'
+      private byte[] tilesFrame(HeatmapState.Delta delta) {
+        HeatmapBatch tiles = delta.tiles(tier);
+        if (tiles == null || tiles.size() == 0) {
+          return null;
+        }
+        int side = state.pyramid().tileSize(tier);
+        HeatmapBatch visible = state.pyramid().within(tier, tiles, viewport);
+        if (visible == tiles) {
+          return delta.tilesFrame(tier, side);
+        }
+        return visible.size() == 0 ? null : Frames.tiles(visible, side, 0);
       }
-      catch(Exception e) {
-        System.out.println("Exception caught while trying to write into the queue: " + HEATMAP_SUPPLIER_URL);
-        e.printStackTrace();
-      }      
     }
 }
@@ -3,43 +3,58 @@ package map;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.CloseStatus;
 
-import reactor.core.publisher.Flux;
-import reactor.core.publisher.ConnectableFlux;
-import reactor.core.scheduler.Schedulers;
 import reactor.core.Disposable;
+import reactor.core.Disposables;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.UnicastProcessor;
 
-import static java.time.Duration.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.List;
-import java.util.ArrayList;
 import java.util.Map;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.nio.file.Files;
-import java.time.LocalTime;
+
+import qm.Settings;
 
 public class Lab2 { // Singleton
   
   private static final String DEFAULT_LOCATION_FILE = "./files/realtimelocation.csv"; 
+  // memory: load the whole file, stream: only index it and read the windows when played
+  private static final String PLAYBACK_MODE = Settings.get("LAB2_PLAYBACK", "memory");
+  // Number of windows cached in stream mode
+  private static final int WINDOW_CACHE = Settings.getInt("LAB2_WINDOW_CACHE", 4);
+  // Time of the file (HH:mm[:ss]) the playback starts at
+  private static final String START_TIME = Settings.get("LAB2_START_TIME", null);
+  // Movement filter: a vehicle's location is sent when it moved that much...
+  private static final double MIN_DISTANCE_METERS = Settings.getDouble("LAB2_MIN_DISTANCE_METERS", 10);
+  // ...no sooner than that after the last one sent (seconds of the file's time)...
+  private static final int MIN_INTERVAL_SECONDS = Settings.getInt("LAB2_MIN_INTERVAL_SECONDS", 0);
+  // ...or anyway when the last one sent is that old
+  private static final int MAX_STALENESS_SECONDS = Settings.getInt("LAB2_MAX_STALENESS_SECONDS", 600);
   
-  // Flow of vehicle location coordinates loaded from the file
-  private ConnectableFlux<String> vehicleLocations;  
+  // Vehicle locations of the file
+  private LocationWindows locations;  
+  // Playback shared by all clients
+  private VehiclePlayback playback;
   
   // Collection of clients' subscriptions
   private final Map<String, Disposable> SUBSCRIPTIONS = new ConcurrentHashMap<>();  
-  // Collection of clients' window delimiter used to control the flow of locations  
-  private final Map<String, String> TIME_DELIMITER = new ConcurrentHashMap<>();  
+  // Area of the map shown by each client, by client id
+  private final Map<String, ClientView> VIEWS = new ConcurrentHashMap<>();
   
   // private constructor
-  private Lab2() {}
-  private static Lab2 instance;
+  private Lab2() {
+    Meters.sessions("2", VIEWS);
+  }
+  private static volatile Lab2 instance;
 
   private static final int DEFAULT_MAX_VEHICLES = 10;
   private static final int DEFAULT_REFRESH_RATE = 60;
   private int maxVehicles;
   private int refreshRate;
-  private WebSocketSession session;
   private String filename;
   
   /**
@@ -51,34 +66,35 @@ public class Lab2 { // Singleton
     if (instance == null){
       synchronized (Lab2.class) {
         if (instance == null){
-          instance = new Lab2();
+          Lab2 lab2 = new Lab2();
           
           // Number of vehicles to track
           try { 
-            instance.maxVehicles = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_MAX_VEHICLES; 
+            lab2.maxVehicles = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_MAX_VEHICLES; 
           }  
           catch (NumberFormatException e) { 
-            instance.maxVehicles = DEFAULT_MAX_VEHICLES;
+            lab2.maxVehicles = DEFAULT_MAX_VEHICLES;
             System.out.println("'" + args[1] + "' is not a valid integer number! Using the default value: " + DEFAULT_MAX_VEHICLES); 
           } 
-          System.out.println("Number of vehicles to track = " + instance.maxVehicles);
+          System.out.println("Number of vehicles to track = " + lab2.maxVehicles);
           
           // Refresh rate
           try { 
-            instance.refreshRate = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_REFRESH_RATE; 
+            lab2.refreshRate = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_REFRESH_RATE; 
           }  
           catch (NumberFormatException e) { 
-            instance.refreshRate = DEFAULT_REFRESH_RATE;
+            lab2.refreshRate = DEFAULT_REFRESH_RATE;
             System.out.println("'" + args[2] + "' is not a valid integer number! Using the default value: " + DEFAULT_REFRESH_RATE); 
           } 
-          System.out.println("Vehicles real refresh rate = " + instance.refreshRate);
+          System.out.println("Vehicles real refresh rate = " + lab2.refreshRate);
           
           // Filename
-          instance.filename = (args.length > 3) ? args[3] : DEFAULT_LOCATION_FILE;
-          System.out.println("Reading vehicles' locations from the file: " + instance.filename);                
+          lab2.filename = (args.length > 3) ? args[3] : DEFAULT_LOCATION_FILE;
+          System.out.println("Reading vehicles' locations from the file: " + lab2.filename);                
           
-          // Open locations file and create a flux from it
-          instance.openLocationsFile();
+          // Load the locations file
+          lab2.openLocationsFile();
+          instance = lab2;
         }
       }
     }
@@ -86,39 +102,39 @@ public class Lab2 { // Singleton
   }
   
    /**
-    * Instantiate a flux of vehicle's locations from the vehicles location file
+    * Load the vehicles' locations from the vehicles location file, once for all clients
     * 
     * @throws Exception
     */    
     private void openLocationsFile() throws IOException
     {
-      //List of first N vehicles to track to
-      List<String> vehicles = new ArrayList<>(maxVehicles);
-      
-      // Set up the flow to be loaded from the file
-      vehicleLocations = Flux.fromStream(Files.lines(Paths.get(filename)))
-        // Filter out empty lines
-        .map(line -> line.trim())
-        .filter(line -> !line.isEmpty())
-        // initialise the list of vehicles to track to
-        .doOnNext(line -> {
-          String vehicle = line.split(",")[1];
-          if (vehicles.size() < maxVehicles && !vehicles.contains(vehicle))
-            vehicles.add(vehicle);
-          })
-        // Filter out the rest of the vechicles
-        .filter(line -> {
-          String vehicle = line.split(",")[1];
-          return vehicles.contains(vehicle) ? true : false;
-        })
-        .subscribeOn(Schedulers.parallel())  
-        //***************** DEBUG      
-        //.log()
-        //*****************
-        // keep the content in memory to be replayed later on 
-        .replay(); 
-      // Start reading the locations
-      vehicleLocations.connect();        
+      long start = System.currentTimeMillis();
+      // Windows span <refreshRate> minutes of the file's time
+      if ("stream".equalsIgnoreCase(PLAYBACK_MODE)) {
+        locations = LocationIndex.open(Paths.get(filename), maxVehicles, refreshRate * 60, WINDOW_CACHE);
+      }
+      else {
+        locations = LocationColumns.load(Paths.get(filename), maxVehicles, refreshRate * 60);
+      }
+      System.out.println((locations instanceof LocationIndex ? "Indexed " : "Loaded ") + locations.rows() + " locations of " + 
+                         locations.names().length + " vehicles in " + locations.windowCount() + " windows (" + 
+                         (System.currentTimeMillis() - start) + " ms)");
+      // Start playing the locations
+      int firstWindow = 0;
+      if (START_TIME != null) {
+        byte[] time = START_TIME.trim().getBytes(StandardCharsets.US_ASCII);
+        int seconds = LocationsLoader.parseTime(ByteBuffer.wrap(time), 0, time.length);
+        if (seconds < 0) {
+          System.out.println("'" + START_TIME + "' is not a valid time! Starting from the beginning of the file");
+        }
+        else {
+          firstWindow = locations.windowAt(seconds);
+        }
+      }
+      MovementFilter filter = new MovementFilter(locations.names().length, MIN_DISTANCE_METERS, 
+                                                 MIN_INTERVAL_SECONDS, MAX_STALENESS_SECONDS);
+      playback = new VehiclePlayback(locations, maxVehicles, refreshRate, filter);
+      playback.start(firstWindow);
     }
 
          
@@ -128,64 +144,29 @@ public class Lab2 { // Singleton
     * @param session Client's WebSocket
     */    
     public void subscribeClient(WebSocketSession session) {
-      // Register this client's initial time window delimiter
-      TIME_DELIMITER.put(session.getId(), "");        
-      
       //***************** DEBUG
       System.out.println("LAB2 - NEW CLIENT CONNECTED!!! " + session.getId());
       //*****************
-      // subscribing for vechicle locations
-      Disposable subscription = vehicleLocations
-        .windowUntil(line -> {
-          String time = line.split(",")[0];
-          if (TIME_DELIMITER.get(session.getId()) == "") {
-            // First element of this window
-            TIME_DELIMITER.put(session.getId(), time);
-            return false;
-          }
-          else if (LocalTime.parse(time).isBefore(LocalTime.parse(TIME_DELIMITER.get(session.getId())).plusMinutes(refreshRate))) { 
-            // Element of this window
-            return false;
-          }
-          else {
-            // Fist element of the next window
-            TIME_DELIMITER.put(session.getId(), time);
-            return true;
-          }
-        }, true) // cutBefore = true. Boundary element belongs to the next window
-        // Apply the refreshRate delaying each window 
-        .delayElements(ofSeconds(refreshRate))
-        .flatMap(windowFlow -> windowFlow
-                   // Count elements to filter out all elments but the first locations of each vehicle in this window
-                   .index()
-                   .handle((tuple, sink) -> {
-                     if (tuple.getT1() < maxVehicles){
-                       //***************** DEBUG
-                       //System.out.println("Line: " + tuple.getT2());
-                       //*****************
-                       // Format each message
-                       String[] msg = tuple.getT2().split(",");
-                       String vehicle = msg[1];
-                       String lat = msg[2];
-                       String longi = msg[3];
-                       sink.next("m2," + vehicle + "," + lat + "," + longi);
-                     }
-                   }))
+      // Registered before subscribing: the last window played may be sent, and
+      // the socket found closed, before subscribe() returns
+      Disposable.Swap subscription = Disposables.swap();
+      SUBSCRIPTIONS.put(session.getId(), subscription);
+      // subscribing for vechicle locations, starting with the last window played
+      subscription.update(frames(session.getId())
         //***************** DEBUG
         //.log()
         //*****************        
-        .subscribe(msg -> {
+        .subscribe(frame -> {
           //***************** DEBUG
-          //System.out.println("Sending: " + msg);
+          //System.out.println("Sending " + frame.length + " bytes");
           //*****************              
-          if (!WsPacket.send(session, (String)msg)){
+          if (!WsPacket.send(session, frame)){
             // Client socket is closed. 
             System.out.println("Lab 2 finished. Socket " + session.getId() + " closed!");
             // Unsubscribe the Flux to stopping receiving msgs
-            SUBSCRIPTIONS.get(session.getId()).dispose();
+            subscription.dispose();
             // remove client from the list of clients
-            SUBSCRIPTIONS.remove(session.getId());
-            TIME_DELIMITER.remove(session.getId());
+            SUBSCRIPTIONS.remove(session.getId(), subscription);
             //***************** DEBUG
             System.out.println("SUBSCRIPTION REMOVED FROM THE LIST OF SUBSCRIPTIONS...");
             System.out.println("Lab2: Total number of clients: " + SUBSCRIPTIONS.size());
@@ -203,19 +184,110 @@ public class Lab2 { // Singleton
             e.printStackTrace();
           }
           // remove client from the list of clients
-          SUBSCRIPTIONS.remove(session.getId());
-          TIME_DELIMITER.remove(session.getId());         
+          SUBSCRIPTIONS.remove(session.getId(), subscription);
           //***************** DEBUG
           System.out.println("SUBSCRIPTION REMOVED FROM THE LIST OF SUBSCRIPTIONS...");
           System.out.println("Lab2: Total number of clients: " + SUBSCRIPTIONS.size());
           //*****************                
-        });
-      
-      // Register this client's subscription
-      SUBSCRIPTIONS.put(session.getId(), subscription);
+        }));
       //***************** DEBUG
       System.out.println("SUBSCRIPTION ADDED TO THE LIST OF SUBSCRIPTIONS...");
       System.out.println("Lab2: Total number of clients: " + SUBSCRIPTIONS.size());
       //*****************                      
     }
+
+   /**
+    * Get the frames to be sent to a client: the tracked vehicles, where they
+    * are, then the locations played. The flow follows the client's viewport
+    * until it is cancelled.
+    * 
+    * @param clientId Client's identifier
+    * @return the flux of frames
+    */    
+    public Flux<byte[]> frames(String clientId) {
+      return Flux.defer(() -> {
+        final ClientView view = new ClientView();
+        VIEWS.put(clientId, view);
+        Flux<byte[]> played = playback.frames()
+          .handle((locations, sink) -> {
+            // Not interleaved with the locations sent when the viewport changes
+            synchronized (view) {
+              byte[] frame = view.frameFor(locations);
+              // null: out of the client's viewport
+              if (frame != null) {
+                sink.next(frame);
+              }
+            }
+          });
+        // Introduce the tracked vehicles and where they are
+        return Flux.just(playback.namesFrame(), playback.positionsFrame())
+          .concatWith(Flux.merge(played, view.exposed))
+          .doFinally(signal -> {
+            VIEWS.remove(clientId);
+            Meters.disposed("2", signal);
+          });
+      });
+    }
+
+   /**
+    * Only send the given client the vehicles in its viewport, starting with the
+    * last position of the ones it could not see
+    * 
+    * @param clientId Client's identifier
+    * @param viewport Area of the map shown by the client
+    */    
+    public void updateViewport(String clientId, Viewport viewport) {
+      ClientView view = VIEWS.get(clientId);
+      if (view == null) {
+        return;
+      }
+      synchronized (view) {
+        byte[] frame = view.moveTo(viewport);
+        if (frame != null) {
+          view.exposedSink.next(frame);
+        }
+      }
+    }
+    
+   /**
+    * Area of the map shown by a client. Callers synchronize on the view.
+    */    
+    private class ClientView {
+      // null until the client tells its viewport: the whole map
+      private Viewport viewport;
+      // Locations sent when the viewport changes
+      private final UnicastProcessor<byte[]> exposed = UnicastProcessor.create();
+      private final FluxSink<byte[]> exposedSink = exposed.sink();
+      
+     /**
+      * Keep the vehicles in the viewport
+      * 
+      * @param frame Vehicle positions played
+      * @return the frame to be sent, null if no vehicle is in the viewport
+      */    
+      byte[] frameFor(byte[] frame) {
+        if (viewport == null) {
+          return frame;
+        }
+        byte[] visible = Frames.vehiclesIn(frame, viewport, null);
+        return visible.length > Frames.HEADER_SIZE ? visible : null;
+      }
+      
+     /**
+      * Change the viewport
+      * 
+      * @param next Area of the map now shown by the client
+      * @return the frame with the vehicles newly exposed, null if none
+      */    
+      byte[] moveTo(Viewport next) {
+        Viewport previous = viewport;
+        viewport = next;
+        if (previous == null) {
+          // Every vehicle was sent
+          return null;
+        }
+        byte[] exposed = Frames.vehiclesIn(playback.positionsFrame(), next, previous);
+        return exposed.length > Frames.HEADER_SIZE ? exposed : null;
+      }
+    }
 }
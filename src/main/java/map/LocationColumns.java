@@ -0,0 +1,124 @@
+package map;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Vehicle locations of the tracked vehicles, parsed once from a
+ * "time,vehicle,lat,lon" file into primitive columns:
+ * time as seconds of the day, vehicle as an interned id (its index in
+ * names()), lat/lon as fixed-point integers (see Frames).
+ * Rows are grouped into playback windows, each one starting with the
+ * first row at or after the previous window's start + window length.
+ */
+public class LocationColumns implements LocationWindows {
+
+  private final int rows;
+  private final int[] times;
+  private final int[] vehicles;
+  private final int[] lats;
+  private final int[] lons;
+  private final String[] names;
+  // First row of each window, followed by the number of rows
+  private int[] windowStarts;
+
+  LocationColumns(int rows, int[] times, int[] vehicles, int[] lats, int[] lons, String[] names, int windowSeconds) {
+    this.rows = rows;
+    this.times = times;
+    this.vehicles = vehicles;
+    this.lats = lats;
+    this.lons = lons;
+    this.names = names;
+    buildWindows(windowSeconds);
+  }
+
+  /**
+   * Load the given file keeping the first N vehicles found
+   *
+   * @param file Locations file
+   * @param maxVehicles Number of vehicles to track
+   * @param windowSeconds Length of a playback window in seconds of the file's time
+   * @return the columns loaded
+   * @throws IOException
+   * @see LocationsLoader
+   */
+  public static LocationColumns load(Path file, int maxVehicles, int windowSeconds) throws IOException {
+    return LocationsLoader.load(file, maxVehicles, windowSeconds);
+  }
+
+  private void buildWindows(int windowSeconds) {
+    int[] starts = new int[16];
+    int count = 0;
+    int windowEnd = Integer.MIN_VALUE;
+    for (int row = 0; row < rows; row++) {
+      if (count == 0 || times[row] >= windowEnd) {
+        if (count == starts.length) {
+          starts = Arrays.copyOf(starts, count * 2);
+        }
+        starts[count++] = row;
+        windowEnd = times[row] + windowSeconds;
+      }
+    }
+    windowStarts = Arrays.copyOf(starts, count + 1);
+    windowStarts[count] = rows;
+  }
+
+  @Override
+  public int rows() {
+    return rows;
+  }
+
+  public int time(int row) {
+    return times[row];
+  }
+
+  public int vehicle(int row) {
+    return vehicles[row];
+  }
+
+  public int lat(int row) {
+    return lats[row];
+  }
+
+  public int lon(int row) {
+    return lons[row];
+  }
+
+  /**
+   * Get the names of the tracked vehicles
+   *
+   * @return names indexed by vehicle id
+   */
+  @Override
+  public String[] names() {
+    return names;
+  }
+
+  @Override
+  public int windowCount() {
+    return windowStarts.length - 1;
+  }
+
+  @Override
+  public int windowTime(int window) {
+    return times[windowStarts[window]];
+  }
+
+  public int windowStart(int window) {
+    return windowStarts[window];
+  }
+
+  public int windowEnd(int window) {
+    return windowStarts[window + 1];
+  }
+
+  @Override
+  public void forEachLocation(int window, int maxRows, LocationVisitor visitor) {
+    int from = windowStart(window);
+    int to = Math.min(windowEnd(window), from + maxRows);
+    for (int row = from; row < to; row++) {
+      visitor.visit(vehicles[row], times[row], lats[row], lons[row]);
+    }
+  }
+}
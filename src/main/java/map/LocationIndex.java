@@ -0,0 +1,241 @@
+package map;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Streaming alternative to LocationColumns for large "time,vehicle,lat,lon" files.
+ *
+ * Only the byte offset and start time of each playback window are kept in
+ * memory (12 bytes a window); a window's locations are read back from the
+ * file when it is played. The locations of the last windows read are kept in
+ * a small LRU cache. Heap use does not depend on the file size.
+ */
+public class LocationIndex implements LocationWindows {
+
+  private static final int BLOCK_SIZE = 64 << 10;
+
+  private final FileChannel channel;
+  // Tracked vehicles
+  private final LocationsLoader.ByteInterner tracked;
+  private final String[] names;
+  private final int rows;
+  // Offset of each window's first line, followed by the file size
+  private final long[] offsets;
+  private final int[] times;
+  // Locations of the last windows read, keyed by window and number of rows
+  private final Map<Long, Rows> cache;
+
+  private LocationIndex(FileChannel channel, Indexer indexer, int cacheSize) {
+    this.channel = channel;
+    this.tracked = indexer.tracked;
+    this.names = new String[tracked.size()];
+    for (int id = 0; id < names.length; id++) {
+      names[id] = tracked.name(id);
+    }
+    this.rows = indexer.rows;
+    this.offsets = Arrays.copyOf(indexer.offsets, indexer.windows + 1);
+    this.times = Arrays.copyOf(indexer.times, indexer.windows);
+    this.cache = new LinkedHashMap<Long, Rows>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Rows> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Index the given file keeping the first N vehicles found.
+   * The file stays open while the index is used.
+   *
+   * @param file Locations file
+   * @param maxVehicles Number of vehicles to track
+   * @param windowSeconds Length of a playback window in seconds of the file's time
+   * @param cacheSize Number of windows cached
+   * @return the index
+   * @throws IOException
+   */
+  public static LocationIndex open(Path file, int maxVehicles, int windowSeconds, int cacheSize) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    try {
+      Indexer indexer = new Indexer(maxVehicles, windowSeconds);
+      // One sequential pass over the file, a mapped chunk at a time
+      long[] bounds = LocationsLoader.split(channel);
+      int malformed = 0;
+      for (int i = 0; i + 1 < bounds.length; i++) {
+        indexer.chunkStart = bounds[i];
+        ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+        malformed += LocationsLoader.scan(chunk, 0, chunk.limit(), indexer);
+      }
+      if (malformed > 0) {
+        System.out.println("Skipped " + malformed + " malformed locations");
+      }
+      indexer.offsets[indexer.windows] = channel.size();
+      return new LocationIndex(channel, indexer, cacheSize);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public String[] names() {
+    return names;
+  }
+
+  @Override
+  public int rows() {
+    return rows;
+  }
+
+  @Override
+  public int windowCount() {
+    return times.length;
+  }
+
+  @Override
+  public int windowTime(int window) {
+    return times[window];
+  }
+
+  @Override
+  public void forEachLocation(int window, int maxRows, LocationVisitor visitor) {
+    Rows rows = rows(window, maxRows);
+    for (int row = 0; row < rows.count; row++) {
+      visitor.visit(rows.ids[row], rows.times[row], rows.lats[row], rows.lons[row]);
+    }
+  }
+
+  private Rows rows(int window, int maxRows) {
+    Long key = ((long) window << 32) | maxRows;
+    synchronized (cache) {
+      Rows rows = cache.get(key);
+      if (rows != null) {
+        return rows;
+      }
+    }
+    Rows rows;
+    try {
+      rows = read(window, maxRows);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    synchronized (cache) {
+      cache.put(key, rows);
+    }
+    return rows;
+  }
+
+  // Read the first locations of a window, a block at a time
+  private Rows read(int window, int maxRows) throws IOException {
+    Rows found = new Rows(maxRows);
+    long position = offsets[window];
+    long end = offsets[window + 1];
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, Math.max(1, end - position)));
+    while (position < end && found.count < maxRows) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read = channel.read(buffer, position);
+      if (read <= 0) {
+        break;
+      }
+      // Only scan whole lines, the rest is read again with the next block
+      int last = read;
+      if (position + read < end) {
+        while (last > 0 && buffer.get(last - 1) != '\n') {
+          last--;
+        }
+        if (last == 0) {
+          // Line longer than the buffer
+          buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+          continue;
+        }
+      }
+      LocationsLoader.scan(buffer, 0, last, found);
+      position += last;
+    }
+    return found;
+  }
+
+  /**
+   * Locations of the tracked vehicles found in a window
+   */
+  private class Rows implements LocationsLoader.RowVisitor {
+    final int[] ids;
+    final int[] times;
+    final int[] lats;
+    final int[] lons;
+    int count;
+
+    Rows(int maxRows) {
+      ids = new int[maxRows];
+      times = new int[maxRows];
+      lats = new int[maxRows];
+      lons = new int[maxRows];
+    }
+
+    @Override
+    public boolean row(ByteBuffer buffer, int line, int time, int vehicleFrom, int vehicleTo, int lat, int lon) {
+      int id = tracked.find(buffer, vehicleFrom, vehicleTo);
+      if (id >= 0) {
+        ids[count] = id;
+        times[count] = time;
+        lats[count] = lat;
+        lons[count] = lon;
+        count++;
+      }
+      return count < ids.length;
+    }
+  }
+
+  /**
+   * Builds the index while scanning the file
+   */
+  private static class Indexer implements LocationsLoader.RowVisitor {
+    final LocationsLoader.ByteInterner tracked = new LocationsLoader.ByteInterner();
+    final int maxVehicles;
+    final int windowSeconds;
+    long chunkStart;
+    int rows;
+    int windows;
+    long[] offsets = new long[16];
+    int[] times = new int[16];
+    int windowEnd;
+
+    Indexer(int maxVehicles, int windowSeconds) {
+      this.maxVehicles = maxVehicles;
+      this.windowSeconds = windowSeconds;
+    }
+
+    @Override
+    public boolean row(ByteBuffer buffer, int line, int time, int vehicleFrom, int vehicleTo, int lat, int lon) {
+      if (tracked.find(buffer, vehicleFrom, vehicleTo) < 0) {
+        if (tracked.size() >= maxVehicles) {
+          // Not tracked
+          return true;
+        }
+        tracked.intern(buffer, vehicleFrom, vehicleTo);
+      }
+      rows++;
+      if (windows == 0 || time >= windowEnd) {
+        // Keep room for the file size
+        if (windows + 1 == offsets.length) {
+          offsets = Arrays.copyOf(offsets, offsets.length * 2);
+          times = Arrays.copyOf(times, times.length * 2);
+        }
+        offsets[windows] = chunkStart + line;
+        times[windows] = time;
+        windows++;
+        windowEnd = time + windowSeconds;
+      }
+      return true;
+    }
+  }
+}
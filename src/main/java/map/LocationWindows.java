@@ -0,0 +1,77 @@
+package map;
+
+/**
+ * Vehicle locations grouped into playback windows, each window spanning
+ * a fixed amount of the file's time.
+ */
+public interface LocationWindows {
+
+  /**
+   * Callback receiving the locations of a window
+   */
+  interface LocationVisitor {
+    /**
+     * @param vehicle Vehicle id
+     * @param time Seconds of the day
+     * @param lat Fixed-point latitude
+     * @param lon Fixed-point longitude
+     */
+    void visit(int vehicle, int time, int lat, int lon);
+  }
+
+  /**
+   * Get the names of the tracked vehicles
+   *
+   * @return names indexed by vehicle id
+   */
+  String[] names();
+
+  /**
+   * Get the number of locations of the tracked vehicles
+   *
+   * @return the number of locations
+   */
+  int rows();
+
+  int windowCount();
+
+  /**
+   * Get the time a window starts at
+   *
+   * @param window Window
+   * @return seconds of the day of the window's first location
+   */
+  int windowTime(int window);
+
+  /**
+   * Visit the first locations of a window, in time order
+   *
+   * @param window Window to be visited
+   * @param maxRows Maximum number of locations visited
+   * @param visitor Callback receiving the locations
+   */
+  void forEachLocation(int window, int maxRows, LocationVisitor visitor);
+
+  /**
+   * Find the window playing the given time (binary search).
+   * Windows are assumed to be in time order.
+   *
+   * @param time Seconds of the day
+   * @return the last window starting at or before the time, 0 if none
+   */
+  default int windowAt(int time) {
+    int low = 0;
+    int high = windowCount() - 1;
+    int found = 0;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (windowTime(mid) <= time) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+}
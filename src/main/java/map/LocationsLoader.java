@@ -0,0 +1,493 @@
+package map;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loader of "time,vehicle,lat,lon" files.
+ *
+ * The file is memory-mapped and split into chunks at line boundaries.
+ * Chunks are parsed in parallel on the fork-join pool, straight from the
+ * mapped bytes, then merged back in file (time) order. Vehicles are
+ * interned per chunk through a hash table of byte ranges, so a name is
+ * only turned into a String the first time a chunk sees it.
+ */
+public class LocationsLoader {
+
+  private static final int MIN_CHUNK_SIZE = 1 << 20;
+  private static final int MAX_CHUNK_SIZE = 256 << 20;
+  // Largest fixed-point coordinates (see Frames)
+  private static final long MAX_LAT = Frames.toFixed(90);
+  private static final long MAX_LON = Frames.toFixed(180);
+
+  // Utility class
+  private LocationsLoader() {}
+
+  /**
+   * Load the given file keeping the first N vehicles found
+   *
+   * @param file Locations file
+   * @param maxVehicles Number of vehicles to track
+   * @param windowSeconds Length of a playback window in seconds of the file's time
+   * @return the columns loaded
+   * @throws IOException
+   */
+  public static LocationColumns load(Path file, int maxVehicles, int windowSeconds) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // Parse the chunks in parallel
+      List<Callable<Chunk>> tasks = new ArrayList<>();
+      long[] bounds = split(channel);
+      for (int i = 0; i + 1 < bounds.length; i++) {
+        final long start = bounds[i];
+        final long end = bounds[i + 1];
+        tasks.add(() -> parse(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start)));
+      }
+      List<Chunk> chunks = new ArrayList<>(tasks.size());
+      for (Future<Chunk> chunk : ForkJoinPool.commonPool().invokeAll(tasks)) {
+        chunks.add(chunk.get());
+      }
+      return merge(chunks, maxVehicles, windowSeconds);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + file, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to load " + file, e.getCause());
+    }
+  }
+
+  /**
+   * Split the file into chunks ending on a line boundary
+   *
+   * @return the offset of each chunk, followed by the file size
+   */
+  static long[] split(FileChannel channel) throws IOException {
+    long size = channel.size();
+    long chunkSize = Math.max(MIN_CHUNK_SIZE,
+                              Math.min(MAX_CHUNK_SIZE, size / (ForkJoinPool.getCommonPoolParallelism() * 4L)));
+    List<Long> bounds = new ArrayList<>();
+    bounds.add(0L);
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long next = chunkSize;
+    while (next < size) {
+      // Move the boundary after the next end of line
+      long boundary = -1;
+      for (long position = next; boundary < 0 && position < size; position += probe.capacity()) {
+        probe.clear();
+        int read = channel.read(probe, position);
+        for (int i = 0; i < read; i++) {
+          if (probe.get(i) == '\n') {
+            boundary = position + i + 1;
+            break;
+          }
+        }
+      }
+      if (boundary < 0 || boundary >= size) {
+        break;
+      }
+      bounds.add(boundary);
+      next = boundary + chunkSize;
+    }
+    bounds.add(size);
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  private static Chunk parse(MappedByteBuffer buffer) {
+    Chunk chunk = new Chunk(Math.max(16, buffer.limit() / 40));
+    chunk.malformed = scan(buffer, 0, buffer.limit(), (b, line, time, vehicleFrom, vehicleTo, lat, lon) -> {
+      chunk.add(time, chunk.names.intern(b, vehicleFrom, vehicleTo), lat, lon);
+      return true;
+    });
+    return chunk;
+  }
+
+  /**
+   * Callback receiving the rows scanned
+   */
+  interface RowVisitor {
+    /**
+     * @param buffer Buffer scanned
+     * @param line Index of the row's line in the buffer
+     * @param time Seconds of the day
+     * @param vehicleFrom Index of the vehicle name's first byte
+     * @param vehicleTo Index after the vehicle name's last byte
+     * @param lat Fixed-point latitude
+     * @param lon Fixed-point longitude
+     * @return false to stop scanning
+     */
+    boolean row(ByteBuffer buffer, int line, int time, int vehicleFrom, int vehicleTo, int lat, int lon);
+  }
+
+  /**
+   * Scan the lines of a buffer, skipping the malformed ones
+   *
+   * @param buffer Buffer holding whole lines
+   * @param from Index of the first line
+   * @param to Index after the last line
+   * @param visitor Callback receiving the rows
+   * @return the number of malformed lines skipped
+   */
+  static int scan(ByteBuffer buffer, int from, int to, RowVisitor visitor) {
+    int malformed = 0;
+    int start = from;
+    while (start < to) {
+      int end = start;
+      while (end < to && buffer.get(end) != '\n') {
+        end++;
+      }
+      int line = start;
+      int last = end;
+      start = end + 1;
+      // Trim
+      while (line < last && buffer.get(line) <= ' ') {
+        line++;
+      }
+      while (last > line && buffer.get(last - 1) <= ' ') {
+        last--;
+      }
+      if (line == last) {
+        continue;
+      }
+      int comma1 = indexOf(buffer, ',', line, last);
+      int comma2 = comma1 < 0 ? -1 : indexOf(buffer, ',', comma1 + 1, last);
+      int comma3 = comma2 < 0 ? -1 : indexOf(buffer, ',', comma2 + 1, last);
+      if (comma3 < 0) {
+        malformed++;
+        continue;
+      }
+      int comma4 = indexOf(buffer, ',', comma3 + 1, last);
+      int time = parseTime(buffer, line, comma1);
+      long lat = parseFixed(buffer, comma2 + 1, comma3, MAX_LAT);
+      long lon = parseFixed(buffer, comma3 + 1, comma4 < 0 ? last : comma4, MAX_LON);
+      if (time < 0 || lat == Long.MIN_VALUE || lon == Long.MIN_VALUE || comma2 == comma1 + 1) {
+        malformed++;
+        continue;
+      }
+      if (!visitor.row(buffer, line, time, comma1 + 1, comma2, (int) lat, (int) lon)) {
+        break;
+      }
+    }
+    return malformed;
+  }
+
+  private static int indexOf(ByteBuffer buffer, char c, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (buffer.get(i) == c) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Parse "HH:mm" or "HH:mm:ss[.fraction]" into seconds of the day
+   *
+   * @return seconds of the day, -1 if malformed
+   */
+  static int parseTime(ByteBuffer buffer, int from, int to) {
+    int hours = 0, minutes = 0, seconds = 0;
+    int part = 0;
+    int digits = 0;
+    for (int i = from; i < to; i++) {
+      byte c = buffer.get(i);
+      if (c >= '0' && c <= '9') {
+        int d = c - '0';
+        if (part == 0) hours = hours * 10 + d;
+        else if (part == 1) minutes = minutes * 10 + d;
+        else seconds = seconds * 10 + d;
+        digits++;
+      } else if (c == ':' && part < 2 && digits > 0) {
+        part++;
+        digits = 0;
+      } else if (c == '.' && part == 2) {
+        break; // ignore fractions of a second
+      } else {
+        return -1;
+      }
+    }
+    if (part == 0 || digits == 0 || hours > 23 || minutes > 59 || seconds > 59) {
+      return -1;
+    }
+    return hours * 3600 + minutes * 60 + seconds;
+  }
+
+  /**
+   * Parse a decimal number of degrees into fixed-point (see Frames)
+   *
+   * @param max Largest magnitude of the fixed-point value
+   * @return the fixed-point value, Long.MIN_VALUE if malformed or out of [-max, max]
+   */
+  static long parseFixed(ByteBuffer buffer, int from, int to, long max) {
+    boolean negative = false;
+    int i = from;
+    if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+      negative = buffer.get(i) == '-';
+      i++;
+    }
+    long value = 0;
+    int digits = 0;
+    int decimals = -1;
+    for (; i < to; i++) {
+      byte c = buffer.get(i);
+      if (c >= '0' && c <= '9') {
+        if (decimals < 6) {
+          value = value * 10 + (c - '0');
+          if (value > max) {
+            // Out of range once scaled, whatever follows
+            return Long.MIN_VALUE;
+          }
+          if (decimals >= 0) {
+            decimals++;
+          }
+        } else if (decimals == 6) {
+          // Round on the 7th decimal
+          if (c >= '5') {
+            value++;
+          }
+          decimals++;
+        }
+        digits++;
+      } else if (c == '.' && decimals < 0) {
+        decimals = 0;
+      } else if (c == 'e' || c == 'E') {
+        // Scientific notation: rare enough to take the slow path
+        try {
+          byte[] text = new byte[to - from];
+          for (int j = 0; j < text.length; j++) {
+            text[j] = buffer.get(from + j);
+          }
+          double degrees = Double.parseDouble(new String(text, StandardCharsets.US_ASCII));
+          return Math.abs(degrees) * Frames.SCALE <= max ? Frames.toFixed(degrees) : Long.MIN_VALUE;
+        } catch (NumberFormatException e) {
+          return Long.MIN_VALUE;
+        }
+      } else {
+        return Long.MIN_VALUE;
+      }
+    }
+    if (digits == 0) {
+      return Long.MIN_VALUE;
+    }
+    for (int d = Math.max(0, decimals); d < 6; d++) {
+      value *= 10;
+    }
+    if (value > max) {
+      return Long.MIN_VALUE;
+    }
+    return negative ? -value : value;
+  }
+
+  private static LocationColumns merge(List<Chunk> chunks, int maxVehicles, int windowSeconds) {
+    // Vehicles are tracked in the order they first appear in the file
+    Map<String, Integer> ids = new HashMap<>();
+    List<String> names = new ArrayList<>();
+    int rows = 0;
+    int malformed = 0;
+    int[][] mappings = new int[chunks.size()][];
+    for (int c = 0; c < chunks.size(); c++) {
+      Chunk chunk = chunks.get(c);
+      int[] mapping = new int[chunk.names.size()];
+      for (int local = 0; local < mapping.length; local++) {
+        String name = chunk.names.name(local);
+        Integer id = ids.get(name);
+        if (id == null && names.size() < maxVehicles) {
+          id = names.size();
+          ids.put(name, id);
+          names.add(name);
+        }
+        // -1 if not tracked
+        mapping[local] = id == null ? -1 : id;
+      }
+      mappings[c] = mapping;
+      for (int row = 0; row < chunk.rows; row++) {
+        if (mapping[chunk.vehicles[row]] >= 0) {
+          rows++;
+        }
+      }
+      malformed += chunk.malformed;
+    }
+    if (malformed > 0) {
+      System.out.println("Skipped " + malformed + " malformed locations");
+    }
+    int[] times = new int[rows];
+    int[] vehicles = new int[rows];
+    int[] lats = new int[rows];
+    int[] lons = new int[rows];
+    int row = 0;
+    for (int c = 0; c < chunks.size(); c++) {
+      Chunk chunk = chunks.get(c);
+      for (int r = 0; r < chunk.rows; r++) {
+        int id = mappings[c][chunk.vehicles[r]];
+        if (id >= 0) {
+          times[row] = chunk.times[r];
+          vehicles[row] = id;
+          lats[row] = chunk.lats[r];
+          lons[row] = chunk.lons[r];
+          row++;
+        }
+      }
+    }
+    return new LocationColumns(rows, times, vehicles, lats, lons, names.toArray(new String[0]), windowSeconds);
+  }
+
+  /**
+   * Rows of one chunk, vehicles interned locally
+   */
+  private static class Chunk {
+    int rows;
+    int malformed;
+    int[] times;
+    int[] vehicles;
+    int[] lats;
+    int[] lons;
+    final ByteInterner names = new ByteInterner();
+
+    Chunk(int capacity) {
+      times = new int[capacity];
+      vehicles = new int[capacity];
+      lats = new int[capacity];
+      lons = new int[capacity];
+    }
+
+    void add(int time, int vehicle, int lat, int lon) {
+      if (rows == times.length) {
+        int capacity = rows * 2;
+        times = Arrays.copyOf(times, capacity);
+        vehicles = Arrays.copyOf(vehicles, capacity);
+        lats = Arrays.copyOf(lats, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+      }
+      times[rows] = time;
+      vehicles[rows] = vehicle;
+      lats[rows] = lat;
+      lons[rows] = lon;
+      rows++;
+    }
+  }
+
+  /**
+   * Open-addressing hash set of byte ranges, giving each distinct range an id
+   * in order of first appearance
+   */
+  static class ByteInterner {
+    private int[] slots = new int[64]; // id + 1, 0 when empty
+    private int[] hashes = new int[64];
+    private String[] names = new String[32];
+    private byte[][] bytes = new byte[32][];
+    private int size;
+
+    /**
+     * Get the id of a byte range, without adding it
+     *
+     * @return the id, -1 if the range was never interned
+     */
+    int find(ByteBuffer buffer, int from, int to) {
+      int slot = slot(buffer, from, to);
+      return slots[slot] - 1;
+    }
+
+    int intern(ByteBuffer buffer, int from, int to) {
+      int slot = slot(buffer, from, to);
+      if (slots[slot] != 0) {
+        return slots[slot] - 1;
+      }
+      int hash = hash(buffer, from, to);
+      // First time this range is seen
+      byte[] name = new byte[to - from];
+      for (int i = 0; i < name.length; i++) {
+        name[i] = buffer.get(from + i);
+      }
+      if (size == names.length) {
+        names = Arrays.copyOf(names, size * 2);
+        bytes = Arrays.copyOf(bytes, size * 2);
+      }
+      bytes[size] = name;
+      names[size] = new String(name, StandardCharsets.UTF_8);
+      slots[slot] = size + 1;
+      hashes[slot] = hash;
+      size++;
+      if (size * 2 > slots.length) {
+        rehash();
+      }
+      return size - 1;
+    }
+
+    int size() {
+      return size;
+    }
+
+    String name(int id) {
+      return names[id];
+    }
+
+    // Slot holding the range, or the empty slot where it belongs
+    private int slot(ByteBuffer buffer, int from, int to) {
+      int hash = hash(buffer, from, to);
+      int mask = slots.length - 1;
+      int slot = (hash ^ (hash >>> 16)) & mask;
+      while (slots[slot] != 0) {
+        int id = slots[slot] - 1;
+        if (hashes[slot] == hash && equals(bytes[id], buffer, from, to)) {
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private static int hash(ByteBuffer buffer, int from, int to) {
+      int hash = 1;
+      for (int i = from; i < to; i++) {
+        hash = 31 * hash + buffer.get(i);
+      }
+      return hash;
+    }
+
+    private void rehash() {
+      int[] oldSlots = slots;
+      int[] oldHashes = hashes;
+      slots = new int[oldSlots.length * 2];
+      hashes = new int[oldSlots.length * 2];
+      int mask = slots.length - 1;
+      for (int i = 0; i < oldSlots.length; i++) {
+        if (oldSlots[i] != 0) {
+          int slot = (oldHashes[i] ^ (oldHashes[i] >>> 16)) & mask;
+          while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+          }
+          slots[slot] = oldSlots[i];
+          hashes[slot] = oldHashes[i];
+        }
+      }
+    }
+
+    private static boolean equals(byte[] name, ByteBuffer buffer, int from, int to) {
+      if (name.length != to - from) {
+        return false;
+      }
+      for (int i = 0; i < name.length; i++) {
+        if (name[i] != buffer.get(from + i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package map;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import reactor.core.publisher.SignalType;
+
+import java.util.Map;
+
+/**
+ * Meters of the parse and fan-out stages, registered with the global
+ * Micrometer registry and read through /actuator/metrics/<name>.
+ * The ingest stage's meters (sqs.*) are in qm.QueueManager and qm.AckBatcher.
+ */
+public class Meters {
+
+  // Generator (memory transport): bursts and messages published in place of the supplier
+  public static final Timer GENERATOR_BURST = Timer.builder("heatmap.generator.burst")
+    .description("Time taken to publish a burst of the heatmap generator")
+    .register(Metrics.globalRegistry);
+  public static final Counter GENERATOR_MESSAGES = Counter.builder("heatmap.generator.messages")
+    .description("Messages published by the heatmap generator")
+    .register(Metrics.globalRegistry);
+
+  // Parse: heatmap lines read from the supplier's messages
+  public static final Counter PARSED_LINES = Counter.builder("heatmap.parse.lines")
+    .description("Heatmap lines parsed")
+    .register(Metrics.globalRegistry);
+  public static final Counter MALFORMED_LINES = Counter.builder("heatmap.parse.malformed")
+    .description("Heatmap lines left out as malformed")
+    .register(Metrics.globalRegistry);
+  public static final Timer PARSE = Timer.builder("heatmap.parse")
+    .description("Time taken to parse a heatmap message")
+    .register(Metrics.globalRegistry);
+
+  // Fan-out: heatmap frames encoded, each shared by every client sent it
+  public static final Counter ENCODED = Counter.builder("heatmap.frames.encoded")
+    .description("Heatmap frames encoded for the clients")
+    .register(Metrics.globalRegistry);
+
+  // Fan-out: frames written to the clients' sockets, both labs together
+  public static final Counter FRAMES_SENT = Counter.builder("ws.frames.sent")
+    .description("Frames written to the clients")
+    .register(Metrics.globalRegistry);
+  public static final Counter BYTES_SENT = Counter.builder("ws.bytes.sent")
+    .description("Bytes written to the clients")
+    .baseUnit("bytes")
+    .register(Metrics.globalRegistry);
+  // Servlet mode only: reactive writes are not queued and do not block the caller
+  public static final Timer QUEUE_WAIT = Timer.builder("ws.queue.wait")
+    .description("Time a frame waited in a client's outbound queue")
+    .publishPercentiles(0.5, 0.99, 0.999)
+    // 2 significant digits
+    .percentilePrecision(2)
+    .register(Metrics.globalRegistry);
+  public static final Timer SEND = Timer.builder("ws.send.latency")
+    .description("Time taken to write a frame to a client's socket")
+    .register(Metrics.globalRegistry);
+
+  // Utility class
+  private Meters() {}
+
+  /**
+   * Count a frame written to a client
+   *
+   * @param bytes Size of the frame
+   */
+  public static void sent(int bytes) {
+    FRAMES_SENT.increment();
+    BYTES_SENT.increment(bytes);
+  }
+
+  /**
+   * Count a frame or event discarded on its way to a client
+   *
+   * @param stage Where it was discarded: writer (outbound queue) or overflow (lab's overflow stage)
+   */
+  public static void dropped(String stage) {
+    Metrics.counter("ws.frames.dropped", "stage", stage).increment();
+  }
+
+  /**
+   * Count a client's subscription to a lab coming to an end
+   *
+   * @param lab Lab the client was subscribed to
+   * @param signal How the subscription ended: cancel, onComplete or onError
+   */
+  public static void disposed(String lab, SignalType signal) {
+    Metrics.counter("ws.subscriptions.disposed", "lab", lab, "signal", signal.toString()).increment();
+  }
+
+  /**
+   * Track the number of clients subscribed to a lab
+   *
+   * @param lab Lab the clients are subscribed to
+   * @param clients Subscribed clients, by client id
+   */
+  public static void sessions(String lab, Map<String, ?> clients) {
+    Metrics.globalRegistry.gaugeMapSize("ws.sessions", Tags.of("lab", lab), clients);
+  }
+}
@@ -0,0 +1,112 @@
+package map;
+
+import java.util.Arrays;
+
+/**
+ * Drops the vehicle locations not worth sending.
+ *
+ * A location is sent when the vehicle moved at least the minimum distance
+ * since the last location sent, no sooner than the minimum interval after
+ * it. A location is always sent once the last one sent is older than the
+ * maximum staleness, so parked vehicles are still refreshed. Times are the
+ * file's (simulated) seconds of the day.
+ *
+ * Distances use the equirectangular approximation, accurate enough at the
+ * scale of a vehicle's move.
+ */
+public class MovementFilter {
+
+  private static final double EARTH_RADIUS_METERS = 6_371_000d;
+  // Meters per fixed-point unit of latitude
+  private static final double METERS_PER_UNIT = Math.toRadians(1 / Frames.SCALE) * EARTH_RADIUS_METERS;
+  private static final int NEVER = Integer.MIN_VALUE;
+
+  private final double minDistanceSquared;
+  private final int minInterval;
+  private final int maxStaleness;
+
+  // Last location sent of each vehicle
+  private final int[] times;
+  private final int[] lats;
+  private final int[] lons;
+
+  /**
+   * Create a filter
+   *
+   * @param vehicles Number of vehicles
+   * @param minDistanceMeters Minimum move sent
+   * @param minIntervalSeconds Minimum time between two locations sent for a vehicle
+   * @param maxStalenessSeconds Maximum time between two locations sent for a vehicle
+   */
+  public MovementFilter(int vehicles, double minDistanceMeters, int minIntervalSeconds, int maxStalenessSeconds) {
+    this.minDistanceSquared = minDistanceMeters * minDistanceMeters;
+    this.minInterval = minIntervalSeconds;
+    this.maxStaleness = maxStalenessSeconds;
+    this.times = new int[vehicles];
+    this.lats = new int[vehicles];
+    this.lons = new int[vehicles];
+    reset();
+  }
+
+  /**
+   * Check whether a location must be sent, and remember it if so
+   *
+   * @param vehicle Vehicle id
+   * @param time Seconds of the day
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   * @return true if the location must be sent
+   */
+  public synchronized boolean accept(int vehicle, int time, int lat, int lon) {
+    int last = times[vehicle];
+    // First location, or time going backwards (the playback started over)
+    boolean send = last == NEVER || time < last || time - last >= maxStaleness
+      || (time - last >= minInterval && distanceSquared(lats[vehicle], lons[vehicle], lat, lon) >= minDistanceSquared);
+    if (send) {
+      times[vehicle] = time;
+      lats[vehicle] = lat;
+      lons[vehicle] = lon;
+    }
+    return send;
+  }
+
+  /**
+   * Forget the locations sent
+   */
+  public synchronized void reset() {
+    Arrays.fill(times, NEVER);
+  }
+
+  /**
+   * Encode the last location sent of every vehicle
+   *
+   * @return the vehicle positions frame
+   */
+  public synchronized byte[] positionsFrame() {
+    int[] ids = new int[times.length];
+    int[] latsSent = new int[times.length];
+    int[] lonsSent = new int[times.length];
+    int count = 0;
+    for (int vehicle = 0; vehicle < times.length; vehicle++) {
+      if (times[vehicle] != NEVER) {
+        ids[count] = vehicle;
+        latsSent[count] = lats[vehicle];
+        lonsSent[count] = lons[vehicle];
+        count++;
+      }
+    }
+    return Frames.vehicles(ids, latsSent, lonsSent, 0, count);
+  }
+
+  /**
+   * Get the squared distance between two locations (equirectangular approximation)
+   *
+   * @return square meters
+   */
+  static double distanceSquared(int lat1, int lon1, int lat2, int lon2) {
+    double cos = Math.cos(Math.toRadians((lat1 + (double) lat2) / 2 / Frames.SCALE));
+    double x = (lon2 - (double) lon1) * cos * METERS_PER_UNIT;
+    double y = (lat2 - (double) lat1) * METERS_PER_UNIT;
+    return x * x + y * y;
+  }
+}
@@ -0,0 +1,114 @@
+package map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.server.RouterFunction;
+import org.springframework.web.reactive.function.server.RouterFunctions;
+import org.springframework.web.reactive.function.server.ServerResponse;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+import org.springframework.web.reactive.socket.server.support.WebSocketHandlerAdapter;
+import org.springframework.web.reactive.socket.server.upgrade.ReactorNettyRequestUpgradeStrategy;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import static org.springframework.web.reactive.function.server.RequestPredicates.GET;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reactive server mode (SERVER_MODE=reactive): the /lab WebSocket served by
+ * WebFlux on Reactor Netty. Each session's output is the merge of the labs'
+ * frame fluxes, written as the socket can take them: no outbound queue and
+ * no blocking write. A slow or stalled client never holds the heatmap back:
+ * Lab 1's overflow stage drops its oldest deltas (HEATMAP_OVERFLOW=buffer
+ * behaves as drop_oldest) and resends what they changed when it catches up.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveServer {
+
+  // Reactor Netty rather than the servlet container also on the classpath
+  @Bean
+  public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+    return new NettyReactiveWebServerFactory();
+  }
+
+  @Bean
+  public HandlerMapping labHandlerMapping() {
+    SimpleUrlHandlerMapping mapping = new SimpleUrlHandlerMapping();
+    mapping.setUrlMap(Collections.singletonMap("/lab", new LabHandler()));
+    mapping.setOrder(-1);
+    return mapping;
+  }
+
+  @Bean
+  public WebSocketHandlerAdapter webSocketHandlerAdapter() {
+    // Tomcat's upgrade strategy would be picked otherwise, as it is on the classpath
+    return new WebSocketHandlerAdapter(new HandshakeWebSocketService(new ReactorNettyRequestUpgradeStrategy()));
+  }
+
+  // WebFlux has no welcome page
+  @Bean
+  public RouterFunction<ServerResponse> indexRouter(@Value("classpath:/public/index.html") Resource index) {
+    return RouterFunctions.route(GET("/"), request -> ServerResponse.ok()
+                                 .contentType(MediaType.TEXT_HTML)
+                                 .body(BodyInserters.fromResource(index)));
+  }
+
+  /**
+   * Handler of the /lab sessions
+   */
+  public static class LabHandler implements WebSocketHandler {
+
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+      String id = session.getId();
+      //***************** DEBUG
+      System.out.println("NEW CLIENT CONNECTED!!! " + id);
+      //*****************
+      List<Flux<byte[]>> labs = new ArrayList<>();
+      if (Application.lab1()) {
+        try {
+          // Frames are only dropped by the lab's overflow stage, which it resyncs by itself
+          labs.add(Lab1.getInstance().frames(id, () -> 0, true));
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+      }
+      if (Application.lab2()) {
+        try {
+          labs.add(Lab2.getInstance(Application.args()).frames(id));
+        } catch(Exception e) {
+          e.printStackTrace();
+        }
+      }
+      // Map access key first
+      Flux<byte[]> frames = Flux.just(Application.mapKeyFrame())
+        .concatWith(Flux.merge(labs));
+      Mono<Void> output = session.send(frames
+                                         // Requested by the socket: about to be written
+                                         .doOnNext(frame -> Meters.sent(frame.length))
+                                         // Frames are shared by the sessions: wrapped, never copied
+                                         .map(frame -> session.binaryMessage(factory -> factory.wrap(frame))));
+      Mono<Void> input = session.receive()
+        .doOnNext(message -> Application.received(id, message.getPayload().asByteBuffer()))
+        .then();
+      // Done as soon as either side is: cancels the other one
+      return Mono.first(input, output)
+        .doFinally(signal -> System.out.println("Socket " + id + " closed! (" + signal + ")"));
+    }
+  }
+}
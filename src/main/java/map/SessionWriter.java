@@ -0,0 +1,236 @@
+package map;
+
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import qm.Settings;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded outbound queue of a WebSocket session.
+ * Callers never block: messages are queued and written by a shared pool
+ * of writer threads, one writer at a time per session.
+ */
+public class SessionWriter {
+
+  /**
+   * What to do with a message offered to a full queue
+   */
+  public enum OverflowPolicy {
+    // Discard the message offered
+    DROP_NEWEST,
+    // Discard the oldest message queued to make room
+    DROP_OLDEST,
+    // Disconnect the client
+    CLOSE
+  }
+
+  private static final int CAPACITY = Settings.getInt("WS_QUEUE_CAPACITY", 1024);
+  private static final OverflowPolicy POLICY = parsePolicy(Settings.get("WS_OVERFLOW", "drop_oldest"));
+  // Maximum messages written in one go before giving the thread to other sessions
+  private static final int DRAIN_BATCH = 64;
+
+  // Writer threads shared by all sessions
+  private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+    Settings.getInt("WS_WRITER_THREADS", Runtime.getRuntime().availableProcessors()),
+    new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "ws-writer-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  private final WebSocketSession session;
+  private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+  // Whether a writer is scheduled or running for this session
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private volatile boolean closed;
+
+  // Statistics
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong sendNanos = new AtomicLong();
+  private final AtomicLong maxSendNanos = new AtomicLong();
+  private volatile int maxDepth;
+
+  public SessionWriter(WebSocketSession session) {
+    this.session = session;
+  }
+
+  /**
+   * Queue the given message to be written to the session
+   *
+   * @param message Message to be sent
+   * @return false if the session is closed
+   */
+  public boolean offer(WebSocketMessage<?> message) {
+    if (closed || !session.isOpen()) {
+      return false;
+    }
+    boolean overflow = false;
+    synchronized (queue) {
+      if (queue.size() >= CAPACITY) {
+        dropped.incrementAndGet();
+        Meters.dropped("writer");
+        switch (POLICY) {
+          case DROP_NEWEST:
+            return true;
+          case DROP_OLDEST:
+            queue.poll();
+            break;
+          default:
+            overflow = true;
+        }
+      }
+      if (!overflow) {
+        queue.add(new Queued(message));
+        if (queue.size() > maxDepth) {
+          maxDepth = queue.size();
+        }
+      }
+    }
+    if (overflow) {
+      System.out.println("Outbound queue of socket " + session.getId() + " is full. Closing it!");
+      close(CloseStatus.SESSION_NOT_RELIABLE);
+      return false;
+    }
+    schedule();
+    return true;
+  }
+
+  /**
+   * Get the number of messages waiting to be written
+   *
+   * @return current queue depth
+   */
+  public int depth() {
+    synchronized (queue) {
+      return queue.size();
+    }
+  }
+
+  /**
+   * Get the number of messages discarded because the queue was full
+   *
+   * @return messages dropped
+   */
+  public long dropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Get the statistics of this session's writer
+   *
+   * @return statistics by name
+   */
+  public Map<String, Object> stats() {
+    long count = sent.get();
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("depth", depth());
+    stats.put("maxDepth", maxDepth);
+    stats.put("sent", count);
+    stats.put("dropped", dropped.get());
+    stats.put("avgSendMicros", count == 0 ? 0 : sendNanos.get() / count / 1000);
+    stats.put("maxSendMicros", maxSendNanos.get() / 1000);
+    return stats;
+  }
+
+  /**
+   * Discard the queued messages and stop writing
+   */
+  public void release() {
+    closed = true;
+    synchronized (queue) {
+      queue.clear();
+    }
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      WRITERS.execute(this::drain);
+    }
+  }
+
+  private void drain() {
+    for (int i = 0; i < DRAIN_BATCH; i++) {
+      Queued queued;
+      synchronized (queue) {
+        queued = queue.poll();
+      }
+      if (queued == null) {
+        break;
+      }
+      Meters.QUEUE_WAIT.record(System.nanoTime() - queued.at, TimeUnit.NANOSECONDS);
+      write(queued.message);
+    }
+    scheduled.set(false);
+    // Messages may have been queued after the last poll
+    if (depth() > 0 && !closed) {
+      schedule();
+    }
+  }
+
+  private void write(WebSocketMessage<?> message) {
+    if (closed || !session.isOpen()) {
+      release();
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      session.sendMessage(message);
+    } catch (IOException e) {
+      System.out.println("Exception caught while trying to write into the socket " + session.getId());
+      e.printStackTrace();
+      return;
+    }
+    long elapsed = System.nanoTime() - start;
+    sent.incrementAndGet();
+    sendNanos.addAndGet(elapsed);
+    maxSendNanos.accumulateAndGet(elapsed, Math::max);
+    Meters.SEND.record(elapsed, TimeUnit.NANOSECONDS);
+    Meters.sent(message.getPayloadLength());
+  }
+
+  private void close(CloseStatus status) {
+    release();
+    try {
+      session.close(status);
+    } catch (IOException e) {
+      System.out.println("Exception caught while trying to close the socket " + session.getId());
+      e.printStackTrace();
+    }
+  }
+
+  private static final class Queued {
+    final WebSocketMessage<?> message;
+    // System.nanoTime() when queued
+    final long at = System.nanoTime();
+
+    Queued(WebSocketMessage<?> message) {
+      this.message = message;
+    }
+  }
+
+  private static OverflowPolicy parsePolicy(String name) {
+    try {
+      return OverflowPolicy.valueOf(name.trim().toUpperCase());
+    } catch (Exception e) {
+      System.out.println("'" + name + "' is not a valid overflow policy! Using the default value: " + OverflowPolicy.DROP_OLDEST);
+      return OverflowPolicy.DROP_OLDEST;
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+
+/**
+ * Actuator endpoint (/actuator/sessions) reporting the outbound queue
+ * depth and send latency of each connected client
+ */
+@Component
+@Endpoint(id = "sessions")
+public class SessionsEndpoint {
+
+  @ReadOperation
+  public Map<String, Map<String, Object>> sessions() {
+    return WsPacket.stats();
+  }
+}
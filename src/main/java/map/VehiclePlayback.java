@@ -0,0 +1,117 @@
+package map;
+
+import reactor.core.publisher.ConnectableFlux;
+import reactor.core.publisher.Flux;
+
+import static java.time.Duration.*;
+
+/**
+ * Playback engine shared by all Lab2 clients.
+ * A single clock advances one window every refresh interval; the locations
+ * of each window that pass the movement filter are encoded once and
+ * multicast to every subscribed client.
+ * Clients joining late start with the last position sent of every vehicle.
+ * Once the last window has been played the playback starts over from the
+ * first one.
+ */
+public class VehiclePlayback {
+
+  private final LocationWindows locations;
+  private final int maxVehicles;
+  private final int refreshRate;
+  private final MovementFilter filter;
+  private final byte[] namesFrame;
+
+  // Frames of the windows played, the latest one replayed to new subscribers
+  private ConnectableFlux<byte[]> frames;
+
+  /**
+   * Create a playback engine
+   *
+   * @param locations Locations to be played
+   * @param maxVehicles Maximum number of locations sent per window
+   * @param refreshRate Seconds between two windows
+   * @param filter Filter of the locations sent
+   */
+  public VehiclePlayback(LocationWindows locations, int maxVehicles, int refreshRate, MovementFilter filter) {
+    this.locations = locations;
+    this.maxVehicles = maxVehicles;
+    this.refreshRate = refreshRate;
+    this.filter = filter;
+    this.namesFrame = Frames.vehicleNames(locations.names(), 0, locations.names().length);
+  }
+
+  /**
+   * Start the clock from the first window
+   */
+  public void start() {
+    start(0);
+  }
+
+  /**
+   * Start the clock
+   *
+   * @param firstWindow Window played first
+   */
+  public synchronized void start(int firstWindow) {
+    if (frames != null) {
+      return;
+    }
+    final int windows = locations.windowCount();
+    frames = Flux.interval(ofSeconds(refreshRate))
+      .filter(tick -> windows > 0)
+      // Encode each window once for all clients
+      .map(tick -> encode((int) ((firstWindow + tick) % windows)))
+      // Nothing moved
+      .filter(frame -> frame.length > Frames.HEADER_SIZE)
+      //***************** DEBUG
+      //.log()
+      //*****************
+      .replay(1);
+    frames.connect();
+  }
+
+  // Encode the locations of a window that pass the filter
+  private byte[] encode(int window) {
+    int[] ids = new int[maxVehicles];
+    int[] lats = new int[maxVehicles];
+    int[] lons = new int[maxVehicles];
+    int[] count = new int[1];
+    locations.forEachLocation(window, maxVehicles, (vehicle, time, lat, lon) -> {
+      if (filter.accept(vehicle, time, lat, lon)) {
+        ids[count[0]] = vehicle;
+        lats[count[0]] = lat;
+        lons[count[0]] = lon;
+        count[0]++;
+      }
+    });
+    return Frames.vehicles(ids, lats, lons, 0, count[0]);
+  }
+
+  /**
+   * Get the frames played from now on, starting with the last one played
+   *
+   * @return the flux of vehicle position frames
+   */
+  public Flux<byte[]> frames() {
+    return frames;
+  }
+
+  /**
+   * Get the last position sent of every vehicle, for the clients joining late
+   *
+   * @return the vehicle positions frame
+   */
+  public byte[] positionsFrame() {
+    return filter.positionsFrame();
+  }
+
+  /**
+   * Get the frame introducing the vehicles played
+   *
+   * @return the vehicle names frame
+   */
+  public byte[] namesFrame() {
+    return namesFrame;
+  }
+}
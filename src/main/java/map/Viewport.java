@@ -0,0 +1,95 @@
+package map;
+
+/**
+ * Area of the map shown by a client: a fixed-point bounding box and the zoom level.
+ * The box may cross the antimeridian (west > east).
+ */
+public class Viewport {
+
+  private final int south;
+  private final int west;
+  private final int north;
+  private final int east;
+  private final int zoom;
+
+  /**
+   * Create a viewport
+   *
+   * @param south Fixed-point latitude of the bottom edge
+   * @param west Fixed-point longitude of the left edge
+   * @param north Fixed-point latitude of the top edge
+   * @param east Fixed-point longitude of the right edge
+   * @param zoom Map zoom level
+   */
+  public Viewport(int south, int west, int north, int east, int zoom) {
+    this.south = Math.min(south, north);
+    this.north = Math.max(south, north);
+    this.west = west;
+    this.east = east;
+    this.zoom = zoom;
+  }
+
+  /**
+   * Check whether a location is in the viewport
+   *
+   * @param lat Fixed-point latitude
+   * @param lon Fixed-point longitude
+   * @return true if the location is shown
+   */
+  public boolean contains(int lat, int lon) {
+    if (lat < south || lat > north) {
+      return false;
+    }
+    return west <= east ? lon >= west && lon <= east : lon >= west || lon <= east;
+  }
+
+  /**
+   * Check whether a square area touches the viewport
+   *
+   * @param south Fixed-point latitude of the area's bottom edge
+   * @param west Fixed-point longitude of the area's left edge
+   * @param size Fixed-point side of the area
+   * @return true if part of the area is shown
+   */
+  public boolean intersects(int south, int west, int size) {
+    long north = (long) south + size;
+    long east = (long) west + size;
+    if (north < this.south || south > this.north) {
+      return false;
+    }
+    if (this.west <= this.east) {
+      return east >= this.west && west <= this.east;
+    }
+    return east >= this.west || west <= this.east;
+  }
+
+  public boolean crossesAntimeridian() {
+    return west > east;
+  }
+
+  public int south() {
+    return south;
+  }
+
+  public int west() {
+    return west;
+  }
+
+  public int north() {
+    return north;
+  }
+
+  public int east() {
+    return east;
+  }
+
+  public int zoom() {
+    return zoom;
+  }
+
+  @Override
+  public String toString() {
+    return "[" + Frames.toDegrees(south) + "," + Frames.toDegrees(west) + " - " +
+           Frames.toDegrees(north) + "," + Frames.toDegrees(east) + " z" + zoom + "]";
+  }
+}
@@ -1,25 +1,78 @@
-
 package map;
 
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.BinaryMessage;
-import java.io.IOException;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class WsPacket {
   
-  public static synchronized boolean send(WebSocketSession session, String msg){
+  // Outbound queue of each open session
+  private static final Map<String, SessionWriter> WRITERS = new ConcurrentHashMap<>();
+  
+  /**
+   * Queue the given frame to be sent to the client. Never blocks.
+   * 
+   * @param session Client's WebSocket
+   * @param frame Frame to be sent (see Frames), possibly shared with other sessions: wrapped, never copied nor modified
+   * @return false if the socket is closed
+   */
+  public static boolean send(WebSocketSession session, byte[] frame){
 
     if (!session.isOpen()) {
       return false; 
     }
-    try {
-      session.sendMessage(new BinaryMessage(msg.getBytes())); 
-      //***************** DEBUG
-      //System.out.println("Session: " + session.getId() + " -> Sent: " + msg);
-      //*****************      
-    } catch (IOException e) {
-      e.printStackTrace();
+    //***************** DEBUG
+    //System.out.println("Session: " + session.getId() + " -> Queued frame type " + frame[0] + " of " + frame.length + " bytes");
+    //*****************      
+    SessionWriter writer = WRITERS.get(session.getId());
+    // No writer: the session was released
+    return writer != null && writer.offer(new BinaryMessage(frame));
+  }
+  
+  /**
+   * Create the outbound queue of a newly connected session
+   * 
+   * @param session Client's WebSocket
+   * @return the session's writer
+   */
+  public static SessionWriter open(WebSocketSession session) {
+    return WRITERS.computeIfAbsent(session.getId(), id -> new SessionWriter(session));
+  }
+  
+  /**
+   * Get the outbound queue of the given session
+   * 
+   * @param session Client's WebSocket
+   * @return the session's writer, null if the session was never opened or was released
+   */
+  public static SessionWriter writer(WebSocketSession session) {
+    return WRITERS.get(session.getId());
+  }
+  
+  /**
+   * Discard the outbound queue of a closed session
+   * 
+   * @param session Client's WebSocket
+   */
+  public static void release(WebSocketSession session) {
+    SessionWriter writer = WRITERS.remove(session.getId());
+    if (writer != null) {
+      writer.release();
+      System.out.println("Socket " + session.getId() + " writer stats: " + writer.stats());
     }
-    return true;
   }
-}
\ No newline at end of file
+  
+  /**
+   * Get the outbound queue statistics of every open session
+   * 
+   * @return statistics by session id
+   */
+  public static Map<String, Map<String, Object>> stats() {
+    Map<String, Map<String, Object>> stats = new TreeMap<>();
+    WRITERS.forEach((id, writer) -> stats.put(id, writer.stats()));
+    return stats;
+  }
+}
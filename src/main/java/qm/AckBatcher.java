@@ -0,0 +1,218 @@
+package qm;
+
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/************************************************************************\
+ * Acknowledgement stage for received SQS messages.
+ *
+ * Receipt handles are gathered per queue and deleted through
+ * DeleteMessageBatch on the asynchronous transport, up to 10 per request.
+ * A queue's buffer is flushed as soon as it holds a full batch or when
+ * the linger time of its oldest entry expires. Only the entries that
+ * failed are retried.
+ *
+ * Tuning (system property or environment variable):
+ *   SQS_ACK_LINGER_MS    - maximum time an ack waits for a full batch (default 50)
+ *   SQS_ACK_MAX_ATTEMPTS - delete attempts per message before giving up (default 3)
+\************************************************************************/
+public class AckBatcher {
+
+  // SQS limit of entries per batch request
+  public static final int MAX_BATCH_SIZE = 10;
+
+  private static final Timer DELETE_LATENCY = Timer.builder("sqs.delete.latency")
+    .description("Time taken by a DeleteMessageBatch request")
+    .register(Metrics.globalRegistry);
+
+  private final long lingerMillis;
+  private final int maxAttempts;
+
+  // Receipt handles waiting to be deleted, by queue URL
+  private final Map<String, QueueBuffer> buffers = new ConcurrentHashMap<>();
+  // Acks not yet confirmed by SQS (buffered or in flight)
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "sqs-ack-linger");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * Create an ack stage using the configured linger time and attempts
+   */
+  public AckBatcher() {
+    this(Settings.getInt("SQS_ACK_LINGER_MS", 50), Settings.getInt("SQS_ACK_MAX_ATTEMPTS", 3));
+  }
+
+  /**
+   * Create an ack stage
+   *
+   * @param lingerMillis maximum time an ack waits for a full batch
+   * @param maxAttempts delete attempts per message before giving up
+   */
+  public AckBatcher(long lingerMillis, int maxAttempts) {
+    this.lingerMillis = lingerMillis;
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  /**
+   * Acknowledge (delete) a received message. Never blocks.
+   *
+   * @param queueUrl URL of the queue the message was received from
+   * @param receiptHandle Receipt handle of the message
+   */
+  public void ack(String queueUrl, String receiptHandle) {
+    outstanding.incrementAndGet();
+    enqueue(queueUrl, new Entry(receiptHandle, 1));
+  }
+
+  /**
+   * Get the number of acks not yet confirmed by SQS
+   *
+   * @return outstanding acks
+   */
+  public int outstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Send all buffered acks now, regardless of batch size
+   *
+   * @return a future completed when all batches sent have been answered
+   */
+  public CompletableFuture<Void> flush() {
+    List<CompletableFuture<?>> sent = new ArrayList<>();
+    buffers.forEach((queueUrl, buffer) -> {
+      List<Entry> batch;
+      while (!(batch = buffer.take(false)).isEmpty()) {
+        sent.add(send(queueUrl, batch));
+      }
+    });
+    return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]));
+  }
+
+  private void enqueue(String queueUrl, Entry entry) {
+    QueueBuffer buffer = buffers.computeIfAbsent(queueUrl, url -> new QueueBuffer());
+    if (buffer.add(entry)) {
+      // First entry of a new batch: flush it when the linger time expires
+      scheduler.schedule(() -> drain(queueUrl, buffer, false), lingerMillis, TimeUnit.MILLISECONDS);
+    }
+    drain(queueUrl, buffer, true);
+  }
+
+  private void drain(String queueUrl, QueueBuffer buffer, boolean fullOnly) {
+    List<Entry> batch;
+    while (!(batch = buffer.take(fullOnly)).isEmpty()) {
+      send(queueUrl, batch);
+    }
+  }
+
+  private CompletableFuture<?> send(String queueUrl, List<Entry> batch) {
+    // Entry ids only need to be unique within the request
+    Map<String, Entry> byId = new HashMap<>();
+    List<DeleteMessageBatchRequestEntry> entries = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      String id = Integer.toString(i);
+      byId.put(id, batch.get(i));
+      entries.add(DeleteMessageBatchRequestEntry.builder()
+                    .id(id)
+                    .receiptHandle(batch.get(i).receiptHandle)
+                    .build());
+    }
+    long start = System.nanoTime();
+    return QueueManager.transport()
+      .deleteMessageBatchAsync(queueUrl, entries)
+      .whenComplete((response, err) -> {
+        DELETE_LATENCY.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (err != null) {
+          // The whole request failed: every entry is retried
+          System.out.println("Exception caught while trying to delete messages from " + queueUrl + ": " + err);
+          batch.forEach(entry -> retry(queueUrl, entry));
+          return;
+        }
+        completed(queueUrl, response, byId);
+      });
+  }
+
+  private void completed(String queueUrl, DeleteMessageBatchResponse response, Map<String, Entry> byId) {
+    outstanding.addAndGet(-response.successful().size());
+    for (BatchResultErrorEntry failure : response.failed()) {
+      Entry entry = byId.get(failure.id());
+      if (failure.senderFault()) {
+        // e.g. expired receipt handle: retrying would fail again
+        System.out.println("Message could not be deleted from " + queueUrl + ": " + failure.code() + " " + failure.message());
+        outstanding.decrementAndGet();
+      } else {
+        retry(queueUrl, entry);
+      }
+    }
+  }
+
+  private void retry(String queueUrl, Entry entry) {
+    if (entry.attempt >= maxAttempts) {
+      System.out.println("Giving up deleting message from " + queueUrl + " after " + entry.attempt + " attempts");
+      outstanding.decrementAndGet();
+      return;
+    }
+    enqueue(queueUrl, new Entry(entry.receiptHandle, entry.attempt + 1));
+  }
+
+  private static class Entry {
+    final String receiptHandle;
+    final int attempt;
+
+    Entry(String receiptHandle, int attempt) {
+      this.receiptHandle = receiptHandle;
+      this.attempt = attempt;
+    }
+  }
+
+  private static class QueueBuffer {
+    private List<Entry> entries = new ArrayList<>(MAX_BATCH_SIZE);
+
+    /**
+     * @return true if the entry opened a new batch
+     */
+    synchronized boolean add(Entry entry) {
+      entries.add(entry);
+      return entries.size() == 1;
+    }
+
+    /**
+     * Take up to one batch out of the buffer
+     *
+     * @param fullOnly only take a full batch
+     * @return the batch taken, empty if none
+     */
+    synchronized List<Entry> take(boolean fullOnly) {
+      if (entries.isEmpty() || (fullOnly && entries.size() < MAX_BATCH_SIZE)) {
+        return new ArrayList<>(0);
+      }
+      if (entries.size() <= MAX_BATCH_SIZE) {
+        List<Entry> batch = entries;
+        entries = new ArrayList<>(MAX_BATCH_SIZE);
+        return batch;
+      }
+      List<Entry> batch = new ArrayList<>(entries.subList(0, MAX_BATCH_SIZE));
+      entries.subList(0, MAX_BATCH_SIZE).clear();
+      return batch;
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package qm;
+
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.services.sns.SnsClient;
+import software.amazon.awssdk.services.sqs.SqsAsyncClient;
+import software.amazon.awssdk.services.sqs.SqsClient;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/************************************************************************\
+ * Registry of the long-lived AWS clients shared by the whole application.
+ *
+ * Clients are built lazily on first use and closed by a JVM shutdown hook.
+ * The synchronous SQS and SNS clients share one pooled HTTP client.
+ *
+ * Tuning (system property or environment variable):
+ *   AWS_MAX_CONNECTIONS      - pooled connections of the sync HTTP client (default 50)
+ *   AWS_ASYNC_MAX_CONCURRENCY - concurrent requests of the async HTTP client (default 50)
+ *   AWS_EVENT_LOOP_THREADS   - event loop threads of the async HTTP client (default: SDK's)
+\************************************************************************/
+public class AwsClients {
+
+  private static final int DEFAULT_MAX_CONNECTIONS = 50;
+  private static final int DEFAULT_MAX_CONCURRENCY = 50;
+
+  private static SdkHttpClient httpClient;
+  private static SdkAsyncHttpClient asyncHttpClient;
+  private static SqsClient sqsClient;
+  private static SqsAsyncClient sqsAsyncClient;
+  private static SnsClient snsClient;
+  private static boolean closed;
+
+  // Tasks to be run before the clients are closed. Last registered runs first.
+  private static final Deque<Runnable> SHUTDOWN_TASKS = new ArrayDeque<>();
+
+  static {
+    // Register hook to clear up resources when exiting
+    Runtime.getRuntime().addShutdownHook(new Thread(AwsClients::shutdown, "aws-clients-shutdown"));
+  }
+
+  // Utility class
+  private AwsClients() {}
+
+  /**
+   * Get the shared synchronous SQS client
+   *
+   * @return the client
+   */
+  public static synchronized SqsClient sqs() {
+    checkOpen();
+    if (sqsClient == null) {
+      sqsClient = SqsClient
+        .builder()
+        .httpClient(httpClient())
+        .build();
+    }
+    return sqsClient;
+  }
+
+  /**
+   * Get the shared asynchronous SQS client
+   *
+   * @return the client
+   */
+  public static synchronized SqsAsyncClient sqsAsync() {
+    checkOpen();
+    if (sqsAsyncClient == null) {
+      sqsAsyncClient = SqsAsyncClient
+        .builder()
+        .httpClient(asyncHttpClient())
+        .build();
+    }
+    return sqsAsyncClient;
+  }
+
+  /**
+   * Get the shared synchronous SNS client
+   *
+   * @return the client
+   */
+  public static synchronized SnsClient sns() {
+    checkOpen();
+    if (snsClient == null) {
+      snsClient = SnsClient
+        .builder()
+        .httpClient(httpClient())
+        .build();
+    }
+    return snsClient;
+  }
+
+  /**
+   * Register a task to be run on shutdown while the clients are still open,
+   * e.g. deleting temporary queues and subscriptions.
+   * Tasks run in the reverse order of their registration.
+   *
+   * @param task Task to be run
+   */
+  public static synchronized void onShutdown(Runnable task) {
+    SHUTDOWN_TASKS.push(task);
+  }
+
+  /**
+   * Run the registered shutdown tasks then close all clients.
+   * Invoked automatically when the JVM exits.
+   */
+  public static void shutdown() {
+    Runnable task;
+    while ((task = nextShutdownTask()) != null) {
+      try {
+        task.run();
+      } catch (Exception e) {
+        System.out.println("Exception caught while running shutdown task...");
+        e.printStackTrace();
+      }
+    }
+    synchronized (AwsClients.class) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      close(sqsClient);
+      close(sqsAsyncClient);
+      close(snsClient);
+      close(httpClient);
+      close(asyncHttpClient);
+    }
+  }
+
+  private static synchronized Runnable nextShutdownTask() {
+    return SHUTDOWN_TASKS.poll();
+  }
+
+  private static void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("AWS clients already closed");
+    }
+  }
+
+  private static SdkHttpClient httpClient() {
+    if (httpClient == null) {
+      httpClient = ApacheHttpClient
+        .builder()
+        .maxConnections(Settings.getInt("AWS_MAX_CONNECTIONS", DEFAULT_MAX_CONNECTIONS))
+        .build();
+    }
+    return httpClient;
+  }
+
+  private static SdkAsyncHttpClient asyncHttpClient() {
+    if (asyncHttpClient == null) {
+      NettyNioAsyncHttpClient.Builder builder = NettyNioAsyncHttpClient
+        .builder()
+        .maxConcurrency(Settings.getInt("AWS_ASYNC_MAX_CONCURRENCY", DEFAULT_MAX_CONCURRENCY));
+      int threads = Settings.getInt("AWS_EVENT_LOOP_THREADS", 0);
+      if (threads > 0) {
+        builder.eventLoopGroupBuilder(SdkEventLoopGroup.builder().numberOfThreads(threads));
+      }
+      asyncHttpClient = builder.build();
+    }
+    return asyncHttpClient;
+  }
+
+  private static void close(AutoCloseable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (Exception e) {
+      System.out.println("Exception caught while closing " + closeable.getClass().getSimpleName() + "...");
+      e.printStackTrace();
+    }
+  }
+}
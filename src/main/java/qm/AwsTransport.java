@@ -0,0 +1,153 @@
+package qm;
+
+import software.amazon.awssdk.services.sns.model.PublishRequest;
+import software.amazon.awssdk.services.sns.model.SubscribeRequest;
+import software.amazon.awssdk.services.sns.model.UnsubscribeRequest;
+import software.amazon.awssdk.services.sqs.model.CreateQueueRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequest;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteQueueRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
+import software.amazon.awssdk.services.sqs.model.GetQueueAttributesResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
+import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
+import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
+import software.amazon.awssdk.services.sqs.model.SetQueueAttributesRequest;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/************************************************************************\
+ * Transport calling Amazon SQS and SNS through the shared clients of
+ * AwsClients
+\************************************************************************/
+public class AwsTransport implements QueueTransport {
+
+  @Override
+  public String createQueue(String queueName, Map<QueueAttributeName, String> attributes) {
+    return AwsClients.sqs()
+      .createQueue(CreateQueueRequest.builder()
+                     .queueName(queueName)
+                     .attributes(attributes)
+                     .build())
+      .queueUrl();
+  }
+
+  @Override
+  public Map<QueueAttributeName, String> getQueueAttributes(String queueUrl, QueueAttributeName... names) {
+    return AwsClients.sqs()
+      .getQueueAttributes(GetQueueAttributesRequest.builder()
+                            .queueUrl(queueUrl)
+                            .attributeNames(names)
+                            .build())
+      .attributes();
+  }
+
+  @Override
+  public CompletableFuture<Map<QueueAttributeName, String>> getQueueAttributesAsync(String queueUrl, QueueAttributeName... names) {
+    return AwsClients.sqsAsync()
+      .getQueueAttributes(GetQueueAttributesRequest.builder()
+                            .queueUrl(queueUrl)
+                            .attributeNames(names)
+                            .build())
+      .thenApply(GetQueueAttributesResponse::attributes);
+  }
+
+  @Override
+  public void setQueueAttributes(String queueUrl, Map<QueueAttributeName, String> attributes) {
+    AwsClients.sqs()
+      .setQueueAttributes(SetQueueAttributesRequest.builder()
+                            .queueUrl(queueUrl)
+                            .attributes(attributes)
+                            .build());
+  }
+
+  @Override
+  public void deleteQueue(String queueUrl) {
+    AwsClients.sqs()
+      .deleteQueue(DeleteQueueRequest.builder()
+                     .queueUrl(queueUrl)
+                     .build());
+  }
+
+  @Override
+  public String sendMessage(String queueUrl, String messageBody, Integer delaySeconds) {
+    return AwsClients.sqs()
+      .sendMessage(SendMessageRequest.builder()
+                     .queueUrl(queueUrl)
+                     .messageBody(messageBody)
+                     .delaySeconds(delaySeconds)
+                     .build())
+      .messageId();
+  }
+
+  @Override
+  public List<Message> receiveMessages(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds) {
+    return AwsClients.sqs()
+      .receiveMessage(ReceiveMessageRequest.builder()
+                        .queueUrl(queueUrl)
+                        .maxNumberOfMessages(maxNumberOfMessages)
+                        .waitTimeSeconds(waitTimeSeconds)
+                        .attributeNames(QueueAttributeName.ALL)
+                        .build())
+      .messages();
+  }
+
+  @Override
+  public CompletableFuture<List<Message>> receiveMessagesAsync(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds) {
+    return AwsClients.sqsAsync()
+      .receiveMessage(ReceiveMessageRequest.builder()
+                        .queueUrl(queueUrl)
+                        .maxNumberOfMessages(maxNumberOfMessages)
+                        .waitTimeSeconds(waitTimeSeconds)
+                        .attributeNames(QueueAttributeName.ALL)
+                        .build())
+      .thenApply(ReceiveMessageResponse::messages);
+  }
+
+  @Override
+  public CompletableFuture<DeleteMessageBatchResponse> deleteMessageBatchAsync(String queueUrl, List<DeleteMessageBatchRequestEntry> entries) {
+    return AwsClients.sqsAsync()
+      .deleteMessageBatch(DeleteMessageBatchRequest.builder()
+                            .queueUrl(queueUrl)
+                            .entries(entries)
+                            .build());
+  }
+
+  @Override
+  public String subscribe(String topicArn, String queueArn) {
+    Map<String, String> attributes = new HashMap<>();
+    attributes.put("RawMessageDelivery", "true");
+    return AwsClients.sns()
+      .subscribe(SubscribeRequest.builder()
+                   .topicArn(topicArn)
+                   .protocol("sqs")
+                   .endpoint(queueArn)
+                   .attributes(attributes)
+                   .build())
+      .subscriptionArn();
+  }
+
+  @Override
+  public void unsubscribe(String subscriptionArn) {
+    AwsClients.sns()
+      .unsubscribe(UnsubscribeRequest.builder()
+                     .subscriptionArn(subscriptionArn)
+                     .build());
+  }
+
+  @Override
+  public String publish(String topicArn, String message) {
+    return AwsClients.sns()
+      .publish(PublishRequest.builder()
+                 .topicArn(topicArn)
+                 .message(message)
+                 .build())
+      .messageId();
+  }
+}
@@ -0,0 +1,446 @@
+package qm;
+
+import software.amazon.awssdk.services.sqs.model.BatchResultErrorEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResultEntry;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+import software.amazon.awssdk.services.sqs.model.QueueDoesNotExistException;
+import software.amazon.awssdk.services.sqs.model.TooManyEntriesInBatchRequestException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/************************************************************************\
+ * In-process stand-in for SQS and SNS, for load tests without AWS
+ * (QM_TRANSPORT=memory).
+ *
+ * Queues and topics are identified by their name: the last part of a
+ * queue URL or of an ARN, so the real URLs and ARNs can be used as they
+ * are. It models what the consumer depends on:
+ *  - long polls, answered as soon as a message is visible;
+ *  - at most 10 messages per receive and per delete batch;
+ *  - visibility timeouts: a received message comes back when it is not
+ *    deleted in time, with a new receipt handle on each receive;
+ *  - the redrive policy's maxReceiveCount and dead-letter queue;
+ *  - system attributes (SentTimestamp, ApproximateFirstReceiveTimestamp,
+ *    ApproximateReceiveCount);
+ *  - topics delivering raw messages to the subscribed queues.
+ * Futures are completed on the transport's own threads, like the
+ * asynchronous client's.
+ *
+ * Tuning (system property or environment variable):
+ *   QM_MEMORY_THREADS - threads answering the receives and timers (default: number of cores)
+\************************************************************************/
+public class MemoryTransport implements QueueTransport {
+
+  public static final String QUEUE_URL_PREFIX = "memory://sqs/";
+  private static final String QUEUE_ARN_PREFIX = "arn:aws:sqs:memory:000000000000:";
+  private static final String TOPIC_ARN_PREFIX = "arn:aws:sns:memory:000000000000:";
+
+  private static final int MAX_BATCH_SIZE = 10;
+  private static final int DEFAULT_VISIBILITY_TIMEOUT = 30;
+  private static final Pattern MAX_RECEIVE_COUNT = Pattern.compile("\"maxReceiveCount\"\\s*:\\s*\"?(\\d+)");
+  private static final Pattern DEAD_LETTER_TARGET = Pattern.compile("\"deadLetterTargetArn\"\\s*:\\s*\"([^\"]+)\"");
+
+  // Queues by name
+  private final Map<String, MemoryQueue> queues = new ConcurrentHashMap<>();
+  // Names of the subscribed queues by subscription ARN, of each topic by name
+  private final Map<String, Map<String, String>> topics = new ConcurrentHashMap<>();
+  private final AtomicInteger threadCount = new AtomicInteger();
+  private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(
+    Settings.getInt("QM_MEMORY_THREADS", Runtime.getRuntime().availableProcessors()),
+    r -> {
+      Thread thread = new Thread(r, "sqs-memory-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+
+  @Override
+  public String createQueue(String queueName, Map<QueueAttributeName, String> attributes) {
+    MemoryQueue queue = queues.computeIfAbsent(queueName, MemoryQueue::new);
+    queue.setAttributes(attributes);
+    return QUEUE_URL_PREFIX + queueName;
+  }
+
+  @Override
+  public Map<QueueAttributeName, String> getQueueAttributes(String queueUrl, QueueAttributeName... names) {
+    return queue(queueUrl).attributes(Arrays.asList(names));
+  }
+
+  @Override
+  public CompletableFuture<Map<QueueAttributeName, String>> getQueueAttributesAsync(String queueUrl, QueueAttributeName... names) {
+    return CompletableFuture.supplyAsync(() -> getQueueAttributes(queueUrl, names), executor);
+  }
+
+  @Override
+  public void setQueueAttributes(String queueUrl, Map<QueueAttributeName, String> attributes) {
+    queue(queueUrl).setAttributes(attributes);
+  }
+
+  @Override
+  public void deleteQueue(String queueUrl) {
+    MemoryQueue queue = queues.remove(name(queueUrl, '/'));
+    if (queue == null) {
+      throw notFound(queueUrl);
+    }
+    queue.delete();
+  }
+
+  @Override
+  public String sendMessage(String queueUrl, String messageBody, Integer delaySeconds) {
+    return queue(queueUrl).send(messageBody, delaySeconds);
+  }
+
+  @Override
+  public List<Message> receiveMessages(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds) {
+    try {
+      return receiveMessagesAsync(queueUrl, maxNumberOfMessages, waitTimeSeconds).join();
+    } catch (CompletionException e) {
+      // Thrown as the synchronous AWS client would
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletableFuture<List<Message>> receiveMessagesAsync(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds) {
+    CompletableFuture<List<Message>> received = new CompletableFuture<>();
+    if (maxNumberOfMessages < 1 || maxNumberOfMessages > MAX_BATCH_SIZE) {
+      received.completeExceptionally(new IllegalArgumentException(
+        "Value " + maxNumberOfMessages + " for parameter MaxNumberOfMessages is invalid. Must be between 1 and 10"));
+      return received;
+    }
+    MemoryQueue queue = queues.get(name(queueUrl, '/'));
+    if (queue == null) {
+      received.completeExceptionally(notFound(queueUrl));
+      return received;
+    }
+    queue.receive(new Waiter(received, maxNumberOfMessages), waitTimeSeconds);
+    return received;
+  }
+
+  @Override
+  public CompletableFuture<DeleteMessageBatchResponse> deleteMessageBatchAsync(String queueUrl, List<DeleteMessageBatchRequestEntry> entries) {
+    return CompletableFuture.supplyAsync(() -> {
+      if (entries.size() > MAX_BATCH_SIZE) {
+        throw TooManyEntriesInBatchRequestException.builder()
+          .message("Maximum number of entries per request are 10. You have sent " + entries.size())
+          .build();
+      }
+      MemoryQueue queue = queue(queueUrl);
+      List<DeleteMessageBatchResultEntry> successful = new ArrayList<>();
+      List<BatchResultErrorEntry> failed = new ArrayList<>();
+      for (DeleteMessageBatchRequestEntry entry : entries) {
+        if (queue.delete(entry.receiptHandle())) {
+          successful.add(DeleteMessageBatchResultEntry.builder().id(entry.id()).build());
+        } else {
+          failed.add(BatchResultErrorEntry.builder()
+                       .id(entry.id())
+                       .code("ReceiptHandleIsInvalid")
+                       .message("The receipt handle has expired or was never issued")
+                       .senderFault(true)
+                       .build());
+        }
+      }
+      return DeleteMessageBatchResponse.builder()
+        .successful(successful)
+        .failed(failed)
+        .build();
+    }, executor);
+  }
+
+  @Override
+  public String subscribe(String topicArn, String queueArn) {
+    String subscriptionArn = TOPIC_ARN_PREFIX + name(topicArn, ':') + ":" + UUID.randomUUID();
+    topics.computeIfAbsent(name(topicArn, ':'), topic -> new ConcurrentHashMap<>())
+      .put(subscriptionArn, name(queueArn, ':'));
+    return subscriptionArn;
+  }
+
+  @Override
+  public void unsubscribe(String subscriptionArn) {
+    topics.values().forEach(subscriptions -> subscriptions.remove(subscriptionArn));
+  }
+
+  @Override
+  public String publish(String topicArn, String message) {
+    Map<String, String> subscriptions = topics.get(name(topicArn, ':'));
+    if (subscriptions != null) {
+      for (String queueName : subscriptions.values()) {
+        MemoryQueue queue = queues.get(queueName);
+        // Deleted queues are skipped, as SNS does
+        if (queue != null) {
+          queue.send(message, null);
+        }
+      }
+    }
+    return UUID.randomUUID().toString();
+  }
+
+  private MemoryQueue queue(String queueUrl) {
+    MemoryQueue queue = queues.get(name(queueUrl, '/'));
+    if (queue == null) {
+      throw notFound(queueUrl);
+    }
+    return queue;
+  }
+
+  private static QueueDoesNotExistException notFound(String queueUrl) {
+    return QueueDoesNotExistException.builder()
+      .message("The specified queue does not exist: " + queueUrl)
+      .build();
+  }
+
+  // Name of a queue or topic: what follows the last separator of its URL or ARN
+  private static String name(String urlOrArn, char separator) {
+    return urlOrArn.substring(urlOrArn.lastIndexOf(separator) + 1);
+  }
+
+  /**
+   * A message and its delivery state. Guarded by its queue.
+   */
+  private static final class Entry {
+    final String id = UUID.randomUUID().toString();
+    final String body;
+    final long sent = System.currentTimeMillis();
+    long firstReceive;
+    int receiveCount;
+    // Receipt handle of the current receive, null while visible
+    String receiptHandle;
+
+    Entry(String body) {
+      this.body = body;
+    }
+  }
+
+  /**
+   * A pending receive
+   */
+  private static final class Waiter {
+    final CompletableFuture<List<Message>> future;
+    final int max;
+    ScheduledFuture<?> timeout;
+
+    Waiter(CompletableFuture<List<Message>> future, int max) {
+      this.future = future;
+      this.max = max;
+    }
+  }
+
+  private final class MemoryQueue {
+    private final String name;
+    private final Map<QueueAttributeName, String> attributes = new EnumMap<>(QueueAttributeName.class);
+    private final ArrayDeque<Entry> visible = new ArrayDeque<>();
+    // Received and not deleted yet, by receipt handle
+    private final Map<String, Entry> inFlight = new HashMap<>();
+    // Long polls waiting for a message, oldest first
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private boolean deleted;
+
+    MemoryQueue(String name) {
+      this.name = name;
+      attributes.put(QueueAttributeName.QUEUE_ARN, QUEUE_ARN_PREFIX + name);
+      attributes.put(QueueAttributeName.VISIBILITY_TIMEOUT, Integer.toString(DEFAULT_VISIBILITY_TIMEOUT));
+      attributes.put(QueueAttributeName.DELAY_SECONDS, "0");
+      attributes.put(QueueAttributeName.CREATED_TIMESTAMP, Long.toString(System.currentTimeMillis() / 1000));
+    }
+
+    synchronized void setAttributes(Map<QueueAttributeName, String> changed) {
+      if (changed != null) {
+        attributes.putAll(changed);
+      }
+    }
+
+    synchronized Map<QueueAttributeName, String> attributes(List<QueueAttributeName> names) {
+      attributes.put(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES, Integer.toString(visible.size()));
+      attributes.put(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES_NOT_VISIBLE, Integer.toString(inFlight.size()));
+      Map<QueueAttributeName, String> selected = new EnumMap<>(QueueAttributeName.class);
+      for (Map.Entry<QueueAttributeName, String> attribute : attributes.entrySet()) {
+        if (names.contains(QueueAttributeName.ALL) || names.contains(attribute.getKey())) {
+          selected.put(attribute.getKey(), attribute.getValue());
+        }
+      }
+      return selected;
+    }
+
+    String send(String body, Integer delaySeconds) {
+      Entry entry = new Entry(body);
+      int delay;
+      synchronized (this) {
+        delay = delaySeconds != null ? delaySeconds : intAttribute(QueueAttributeName.DELAY_SECONDS, 0);
+      }
+      if (delay > 0) {
+        executor.schedule(() -> makeVisible(entry, null), delay, TimeUnit.SECONDS);
+      } else {
+        makeVisible(entry, null);
+      }
+      return entry.id;
+    }
+
+    void receive(Waiter waiter, int waitTimeSeconds) {
+      List<Message> messages;
+      synchronized (this) {
+        messages = take(waiter.max);
+        if (messages.isEmpty() && waitTimeSeconds > 0 && !deleted) {
+          // Long poll: answered by the next message made visible, or empty on timeout
+          waiters.add(waiter);
+          waiter.timeout = executor.schedule(() -> expire(waiter), waitTimeSeconds, TimeUnit.SECONDS);
+          return;
+        }
+      }
+      complete(waiter, messages);
+    }
+
+    synchronized boolean delete(String receiptHandle) {
+      return inFlight.remove(receiptHandle) != null;
+    }
+
+    void delete() {
+      List<Waiter> pending;
+      synchronized (this) {
+        deleted = true;
+        visible.clear();
+        inFlight.clear();
+        pending = new ArrayList<>(waiters);
+        waiters.clear();
+      }
+      for (Waiter waiter : pending) {
+        waiter.timeout.cancel(false);
+        complete(waiter, new ArrayList<>(0));
+      }
+    }
+
+    // Make a new or returning message visible and hand it to the oldest long poll
+    private void makeVisible(Entry entry, String expiredReceipt) {
+      Waiter waiter;
+      List<Message> messages;
+      synchronized (this) {
+        if (deleted) {
+          return;
+        }
+        if (expiredReceipt != null) {
+          // Visibility timeout expired: only if still not deleted nor received again
+          if (inFlight.get(expiredReceipt) != entry) {
+            return;
+          }
+          inFlight.remove(expiredReceipt);
+          entry.receiptHandle = null;
+        }
+        visible.add(entry);
+        waiter = waiters.poll();
+        if (waiter == null) {
+          return;
+        }
+        messages = take(waiter.max);
+        if (messages.isEmpty()) {
+          // Moved to the dead-letter queue instead: keep waiting
+          waiters.addFirst(waiter);
+          return;
+        }
+        waiter.timeout.cancel(false);
+      }
+      complete(waiter, messages);
+    }
+
+    private void expire(Waiter waiter) {
+      synchronized (this) {
+        if (!waiters.remove(waiter)) {
+          // Already answered
+          return;
+        }
+      }
+      complete(waiter, new ArrayList<>(0));
+    }
+
+    // Receive up to max visible messages. Caller holds the lock.
+    private List<Message> take(int max) {
+      List<Message> messages = new ArrayList<>(Math.min(max, visible.size()));
+      int visibilityTimeout = intAttribute(QueueAttributeName.VISIBILITY_TIMEOUT, DEFAULT_VISIBILITY_TIMEOUT);
+      long now = System.currentTimeMillis();
+      Iterator<Entry> entries = visible.iterator();
+      while (messages.size() < max && entries.hasNext()) {
+        Entry entry = entries.next();
+        entries.remove();
+        if (redrive(entry)) {
+          continue;
+        }
+        entry.receiveCount++;
+        if (entry.firstReceive == 0) {
+          entry.firstReceive = now;
+        }
+        entry.receiptHandle = UUID.randomUUID().toString();
+        inFlight.put(entry.receiptHandle, entry);
+        final String receipt = entry.receiptHandle;
+        executor.schedule(() -> makeVisible(entry, receipt), visibilityTimeout, TimeUnit.SECONDS);
+        Map<String, String> system = new HashMap<>();
+        system.put("SentTimestamp", Long.toString(entry.sent));
+        system.put("ApproximateFirstReceiveTimestamp", Long.toString(entry.firstReceive));
+        system.put("ApproximateReceiveCount", Integer.toString(entry.receiveCount));
+        system.put("SenderId", "memory");
+        messages.add(Message.builder()
+                       .messageId(entry.id)
+                       .receiptHandle(receipt)
+                       .body(entry.body)
+                       .attributesWithStrings(system)
+                       .build());
+      }
+      return messages;
+    }
+
+    // Move a message received too many times to the dead-letter queue. Caller holds the lock.
+    private boolean redrive(Entry entry) {
+      String policy = attributes.get(QueueAttributeName.REDRIVE_POLICY);
+      if (policy == null) {
+        return false;
+      }
+      Matcher maxReceiveCount = MAX_RECEIVE_COUNT.matcher(policy);
+      if (!maxReceiveCount.find() || entry.receiveCount < Integer.parseInt(maxReceiveCount.group(1))) {
+        return false;
+      }
+      Matcher target = DEAD_LETTER_TARGET.matcher(policy);
+      MemoryQueue deadLetters = target.find() ? queues.get(name(target.group(1), ':')) : null;
+      if (deadLetters != null && deadLetters != this) {
+        // Sent from another thread: never hold two queue locks
+        executor.execute(() -> deadLetters.send(entry.body, 0));
+      } else {
+        System.out.println("Message " + entry.id + " of " + name + " received " + entry.receiveCount + " times and discarded");
+      }
+      return true;
+    }
+
+    // Caller holds the lock
+    private int intAttribute(QueueAttributeName attribute, int defaultValue) {
+      try {
+        return Integer.parseInt(attributes.get(attribute));
+      } catch (RuntimeException e) {
+        return defaultValue;
+      }
+    }
+
+    // Complete on the transport's threads, never the caller's
+    private void complete(Waiter waiter, List<Message> messages) {
+      executor.execute(() -> waiter.future.complete(messages));
+    }
+  }
+}
@@ -5,27 +5,21 @@ package qm;
 import software.amazon.awssdk.core.auth.policy.Statement.Effect;
 import software.amazon.awssdk.core.auth.policy.Principal;
 import software.amazon.awssdk.services.iot.model.SqsAction;*/
-import software.amazon.awssdk.auth.credentials.ProfileCredentialsProvider;
-import software.amazon.awssdk.regions.Region;
-import software.amazon.awssdk.services.sqs.SqsClient;
-import software.amazon.awssdk.services.sqs.SqsAsyncClient;
-import software.amazon.awssdk.services.sqs.model.CreateQueueRequest;
-import software.amazon.awssdk.services.sqs.model.DeleteQueueRequest;
-import software.amazon.awssdk.services.sqs.model.SendMessageRequest;
-import software.amazon.awssdk.services.sqs.model.ReceiveMessageRequest;
-import software.amazon.awssdk.services.sqs.model.ReceiveMessageResponse;
 import software.amazon.awssdk.services.sqs.model.Message;
-import software.amazon.awssdk.services.sqs.model.DeleteQueueRequest;
-import software.amazon.awssdk.services.sqs.model.DeleteMessageRequest;
 import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
-import software.amazon.awssdk.services.sqs.model.GetQueueAttributesRequest;
-import software.amazon.awssdk.services.sqs.model.SetQueueAttributesRequest;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
 
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /************************************************************************\
  * Utility class to interact with AWS Simple Queue Service (SQS)
+ * through the transport selected by QM_TRANSPORT (see QueueTransport)
  * 
  * Author: Denis Baltor
 \************************************************************************/
@@ -33,6 +27,22 @@ public class QueueManager {
   
   private static final String TEST_QUEUE_NAME = "test-queue-" + System.currentTimeMillis();
   private static final String DLQ_ARN = "arn:aws:sqs:eu-west-2:556385395922:heatmap-dlq";
+  
+  // Ack stage deleting the messages received
+  private static AckBatcher acks;
+  // Queues and topics used
+  private static QueueTransport transport;
+  
+  // Ingest meters, read through /actuator/metrics/<name>
+  private static final Timer RECEIVE_LATENCY = Timer.builder("sqs.receive.latency")
+    .description("Time taken by a receive, long poll included")
+    .register(Metrics.globalRegistry);
+  private static final DistributionSummary RECEIVED = DistributionSummary.builder("sqs.receive.messages")
+    .description("Messages brought by a receive")
+    .register(Metrics.globalRegistry);
+  private static final Counter EMPTY_RECEIVES = Counter.builder("sqs.receive.empty")
+    .description("Receives bringing no message")
+    .register(Metrics.globalRegistry);
 
   /**
    * The class runs a set of integration tests when executed standalone.
@@ -166,29 +176,60 @@ public class QueueManager {
   }
   
   /**
-   * Build a synchronous SQS client
+   * Get the transport selected by QM_TRANSPORT: aws (default) or memory
    * 
-   * @return the client built
+   * @return the transport
   */
-  private static SqsClient buildClient() {
-    // Build a SQS service client
-    return SqsClient
-      .builder()
-//      .region(Region.EU_WEST_2)
-      .build();      
+  public static synchronized QueueTransport transport() {
+    if (transport == null) {
+      if ("memory".equalsIgnoreCase(Settings.get("QM_TRANSPORT", "aws"))) {
+        System.out.println("Using the in-memory queues and topics: no AWS!");
+        transport = new MemoryTransport();
+      } else {
+        transport = new AwsTransport();
+      }
+    }
+    return transport;
   }
   
   /**
-   * Build an asynchronous SQS client
+   * Check whether the queues and topics are the in-process stand-in
    * 
-   * @return the client built
+   * @return true if QM_TRANSPORT=memory
   */
-  private static SqsAsyncClient buildAsyncClient() {
-    // Build a SQS service client
-    return SqsAsyncClient
-      .builder()
-      .build();      
-  }  
+  public static boolean inMemory() {
+    return transport() instanceof MemoryTransport;
+  }
+  
+  /**
+   * Get the shared ack stage, flushed on shutdown
+   * 
+   * @return the ack stage
+  */
+  private static synchronized AckBatcher acks() {
+    if (acks == null) {
+      final AckBatcher ackBatcher = new AckBatcher();
+      AwsClients.onShutdown(() -> {
+        try {
+          ackBatcher.flush().get(5, TimeUnit.SECONDS);
+        } catch(Exception e) {
+          System.out.println("Exception caught while flushing pending acks...");
+          e.printStackTrace();
+        }
+      });
+      acks = ackBatcher;
+    }
+    return acks;
+  }
+  
+  /**
+   * Get the number of received messages whose deletion is not yet confirmed
+   * 
+   * @return outstanding acks
+  */
+  public static int pendingAcks() {
+    return acks == null ? 0 : acks().outstanding();
+  }
   
   /**
    * Create a new queue
@@ -198,12 +239,7 @@ public class QueueManager {
    * @throws Exception
    */    
   public static String createQueue(String queueName) throws Exception{
-    return buildClient()
-      .createQueue(CreateQueueRequest
-                     .builder()
-                     .queueName(queueName)
-                     .build())
-      .queueUrl();  
+    return transport().createQueue(queueName, new HashMap<QueueAttributeName, String>());
   }
   
   /**
@@ -215,17 +251,13 @@ public class QueueManager {
    * @throws Exception
    */   
   public static String createQueue(String queueName, String deadLetterQueueARN) throws Exception{
-    return buildClient()
-      .createQueue(CreateQueueRequest
-                     .builder()
-                     .queueName(queueName)
-                     .attributes(new HashMap<QueueAttributeName, String>(){{
+    return transport()
+      .createQueue(queueName,
+                   new HashMap<QueueAttributeName, String>(){{
       put(QueueAttributeName.REDRIVE_POLICY, 
           "{\"maxReceiveCount\":\"5\", " + 
           "\"deadLetterTargetArn\":\"" + 
-          deadLetterQueueARN + "\"}");}})
-                     .build())
-      .queueUrl();  
+          deadLetterQueueARN + "\"}");}});
   }
 
   /**
@@ -239,26 +271,11 @@ public class QueueManager {
    */   
   public static String createQueue(String queueName, String deadLetterQueueARN, String topicARN) throws Exception
   {
-    SqsClient sqsClient = buildClient();
-    String queueUrl = sqsClient
-      .createQueue(CreateQueueRequest
-                     .builder()
-                     .queueName(queueName)
-                     .build())
-      .queueUrl();
-    final String queueARN = sqsClient    
-      .getQueueAttributes(GetQueueAttributesRequest
-                            .builder()
-                            .queueUrl(queueUrl)
-                            .attributeNames(QueueAttributeName.QUEUE_ARN)
-                            .build())
-      .attributes().get(QueueAttributeName.QUEUE_ARN);
-    sqsClient.setQueueAttributes(
-                                 SetQueueAttributesRequest
-                                   .builder()
-                                   .queueUrl(queueUrl)
-                                   .attributes(
-                                               new HashMap<QueueAttributeName, String>(){{
+    QueueTransport queues = transport();
+    String queueUrl = queues.createQueue(queueName, new HashMap<QueueAttributeName, String>());
+    final String queueARN = getQueueARN(queueUrl);
+    queues.setQueueAttributes(queueUrl,
+                              new HashMap<QueueAttributeName, String>(){{
       put(QueueAttributeName.REDRIVE_POLICY, 
           "{\"maxReceiveCount\":\"5\", " + 
           "\"deadLetterTargetArn\":\"" + 
@@ -272,8 +289,7 @@ public class QueueManager {
           "\"Condition\": {" +
           "\"ArnEquals\": {\"aws:SourceArn\": \"" + topicARN + "\"}" +
           "}" +
-          "}]}");}})
-                                   .build());
+          "}]}");}});
     return queueUrl;
   }  
   
@@ -286,12 +302,22 @@ public class QueueManager {
    */ 
   public static String getQueueARN(String queueUrl) throws Exception
   {
-    return buildClient()
-      .getQueueAttributes(GetQueueAttributesRequest.builder()
-                            .queueUrl(queueUrl)
-                            .attributeNames(QueueAttributeName.QUEUE_ARN)
-                            .build())
-      .attributes().get(QueueAttributeName.QUEUE_ARN);
+    return transport()
+      .getQueueAttributes(queueUrl, QueueAttributeName.QUEUE_ARN)
+      .get(QueueAttributeName.QUEUE_ARN);
+  }
+
+  /**
+   * Asynchronously get the approximate number of messages available on the queue
+   * 
+   * @param queueUrl URL of the queue to enquire
+   * @return A completable future of the number of messages
+   */ 
+  public static CompletableFuture<Integer> getApproximateNumberOfMessagesAsync(String queueUrl)
+  {
+    return transport()
+      .getQueueAttributesAsync(queueUrl, QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)
+      .thenApply(attributes -> Integer.valueOf(attributes.get(QueueAttributeName.APPROXIMATE_NUMBER_OF_MESSAGES)));
   }
 
   /**
@@ -301,11 +327,7 @@ public class QueueManager {
    * @throws Exception
    */     
   public static void deleteQueue(String queueUrl) throws Exception{
-    buildClient()
-      .deleteQueue(
-                   DeleteQueueRequest.builder()
-                     .queueUrl(queueUrl)
-                     .build());
+    transport().deleteQueue(queueUrl);
   }
   
   /**
@@ -317,12 +339,7 @@ public class QueueManager {
    * @throws Exception
    */  
   public static String put(String queueUrl, String messageBody) throws Exception{
-    return buildClient()
-      .sendMessage(SendMessageRequest.builder()
-                     .queueUrl(queueUrl)
-                     .messageBody(messageBody)
-                     .build())
-      .messageId();    
+    return transport().sendMessage(queueUrl, messageBody, null);
   }
  
   /**
@@ -335,13 +352,7 @@ public class QueueManager {
    * @throws Exception
    */   
   public static String put(String queueUrl, String messageBody, Integer delaySeconds) throws Exception{ 
-    return buildClient()
-      .sendMessage(SendMessageRequest.builder()
-                     .queueUrl(queueUrl)
-                     .messageBody(messageBody)
-                     .delaySeconds(delaySeconds)
-                     .build())
-      .messageId();
+    return transport().sendMessage(queueUrl, messageBody, delaySeconds);
   }
   
   /**
@@ -382,28 +393,13 @@ public class QueueManager {
    * @return The list of messages retrieved
    */  
   public static List<Message> get(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds) {
-    SqsClient sqsClient = buildClient();
-    
     // long poll the queue for <waitTimeSeconds> seconds to read up to <maxNumberOfMessages> messages
-    List<Message> messages = sqsClient.receiveMessage(
-                                                      ReceiveMessageRequest
-                                                        .builder()
-                                                        .queueUrl(queueUrl)
-                                                        .maxNumberOfMessages(maxNumberOfMessages)
-                                                        .waitTimeSeconds(waitTimeSeconds)
-                                                        .attributeNames(QueueAttributeName.ALL)
-                                                        .build())
-      .messages();
+    long start = System.nanoTime();
+    List<Message> messages = transport().receiveMessages(queueUrl, maxNumberOfMessages, waitTimeSeconds);
+    received(start, messages);
 
     // delete from the queue all messages read
-    for (Message message : messages) {
-      sqsClient.deleteMessage(
-                              DeleteMessageRequest
-                                .builder()
-                                .queueUrl(queueUrl)
-                                .receiptHandle(message.receiptHandle())
-                                .build());
-    }
+    ack(queueUrl, messages);
     
     return messages;
   }
@@ -447,31 +443,78 @@ public class QueueManager {
    */  
   public static CompletableFuture<List<Message>> getAsync(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds) {
     // long poll the queue for <waitTimeSeconds> seconds to read up to <maxNumberOfMessages> messages
-    CompletableFuture<ReceiveMessageResponse> response = buildAsyncClient()
-      .receiveMessage(
-                      ReceiveMessageRequest
-                        .builder()
-                        .queueUrl(queueUrl)
-                        .maxNumberOfMessages(maxNumberOfMessages)
-                        .waitTimeSeconds(waitTimeSeconds)
-                        .attributeNames(QueueAttributeName.ALL)
-                        .build());
-    
-    CompletableFuture<List<Message>> messages = response.thenApply(ReceiveMessageResponse::messages);
+    long start = System.nanoTime();
+    CompletableFuture<List<Message>> messages = transport()
+      .receiveMessagesAsync(queueUrl, maxNumberOfMessages, waitTimeSeconds)
+      .thenApply(batch -> {
+        received(start, batch);
+        return batch;
+      });
 
     // delete from the queue all messages read
-    SqsClient sqsClient = buildClient();
-    messages.thenAccept(msgs -> {
-      for (Message message : msgs) {
-        sqsClient.deleteMessage(
-                                DeleteMessageRequest
-                                  .builder()
-                                  .queueUrl(queueUrl)
-                                  .receiptHandle(message.receiptHandle())
-                                  .build());
-      }
-    });
+    messages.thenAccept(msgs -> ack(queueUrl, msgs));
     
     return messages;
   }  
+  
+  /**
+   * Subscribe the given queue to a topic, with raw message delivery
+   * 
+   * @param topicArn ARN of the topic
+   * @param queueUrl URL of the queue to receive the topic's messages
+   * @return The subscription's ARN
+   * @throws Exception
+   */
+  public static String subscribe(String topicArn, String queueUrl) throws Exception{
+    return transport().subscribe(topicArn, getQueueARN(queueUrl));
+  }
+  
+  /**
+   * Delete a subscription to a topic
+   * 
+   * @param subscriptionArn ARN of the subscription
+   * @throws Exception
+   */
+  public static void unsubscribe(String subscriptionArn) throws Exception{
+    transport().unsubscribe(subscriptionArn);
+  }
+  
+  /**
+   * Publish the given message to the queues subscribed to a topic
+   * 
+   * @param topicArn ARN of the topic
+   * @param message Content to be published
+   * @return The message id generated
+   * @throws Exception
+   */
+  public static String publish(String topicArn, String message) throws Exception{
+    return transport().publish(topicArn, message);
+  }
+  
+  /**
+   * Record the latency and size of a receive
+   * 
+   * @param start System.nanoTime() when the receive was issued
+   * @param messages Messages received
+   */
+  private static void received(long start, List<Message> messages) {
+    RECEIVE_LATENCY.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    RECEIVED.record(messages.size());
+    if (messages.isEmpty()) {
+      EMPTY_RECEIVES.increment();
+    }
+  }
+  
+  /**
+   * Hand the given messages over to the ack stage to be deleted in batches.
+   * 
+   * @param queueUrl URL of the queue the messages were received from
+   * @param messages Messages to be deleted
+   */
+  private static void ack(String queueUrl, List<Message> messages) {
+    AckBatcher ackBatcher = acks();
+    for (Message message : messages) {
+      ackBatcher.ack(queueUrl, message.receiptHandle());
+    }
+  }
 }
\ No newline at end of file
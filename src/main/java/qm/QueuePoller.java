@@ -0,0 +1,182 @@
+package qm;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/************************************************************************\
+ * Poller engine keeping several asynchronous receives in flight on a queue.
+ *
+ * Every receive asks for the maximum batch SQS allows (10 messages).
+ * The number of concurrent receives adapts to the traffic:
+ *  - a full batch means there is a backlog: one more receive is added
+ *    and the queue's ApproximateNumberOfMessages is sampled to size the
+ *    pool in one step (one receive per 10 messages waiting);
+ *  - a partial batch removes one receive;
+ *  - an empty batch means the queue is idle: the engine falls back to a
+ *    single long poll.
+ * The received messages are handed over to a consumer, possibly from
+ * several threads at once, and deleted by QueueManager's ack stage.
+ *
+ * By default the engine polls as fast as the queue delivers. Once
+ * limitToRequested() is called, receives are only issued while the
+ * consumer has requested more messages than those already in flight.
+\************************************************************************/
+public class QueuePoller {
+
+  public static final int MAX_BATCH_SIZE = 10;
+  private static final int LONG_POLL_SECONDS = 20;
+  // Minimum interval between two samples of the queue's backlog
+  private static final long BACKLOG_SAMPLE_INTERVAL_MS = 1000;
+
+  private final String queueUrl;
+  private final int maxPollers;
+  private final Consumer<List<Message>> consumer;
+  private final Consumer<Throwable> errorHandler;
+
+  // Receives currently in flight
+  private final AtomicInteger inFlight = new AtomicInteger();
+  // Receives wanted in flight
+  private volatile int target = 1;
+  // Messages requested by the consumer and not yet delivered
+  private final AtomicLong requested = new AtomicLong(Long.MAX_VALUE);
+  private volatile long lastBacklogSample;
+  private volatile boolean running;
+
+  /**
+   * Create a poller
+   *
+   * @param queueUrl URL of the queue to be polled
+   * @param maxPollers maximum number of receives in flight
+   * @param consumer Callback receiving each non-empty batch
+   * @param errorHandler Callback receiving the error that stopped the poller
+   */
+  public QueuePoller(String queueUrl, int maxPollers, Consumer<List<Message>> consumer, Consumer<Throwable> errorHandler) {
+    this.queueUrl = queueUrl;
+    this.maxPollers = Math.max(1, maxPollers);
+    this.consumer = consumer;
+    this.errorHandler = errorHandler;
+  }
+
+  /**
+   * Only issue receives for messages requested through request(long).
+   * Must be called before start().
+   */
+  public void limitToRequested() {
+    requested.set(0);
+  }
+
+  /**
+   * Signal the consumer's demand for more messages
+   *
+   * @param n number of additional messages wanted
+   */
+  public void request(long n) {
+    if (n <= 0) {
+      return;
+    }
+    requested.accumulateAndGet(n, (current, added) -> {
+      long sum = current + added;
+      return sum < 0 ? Long.MAX_VALUE : sum; // saturate on overflow
+    });
+    fill();
+  }
+
+  /**
+   * Start polling the queue
+   */
+  public void start() {
+    running = true;
+    fill();
+  }
+
+  /**
+   * Stop issuing receives. Receives in flight still complete.
+   */
+  public void stop() {
+    running = false;
+  }
+
+  /**
+   * Get the number of receives in flight
+   *
+   * @return receives in flight
+   */
+  public int inFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Get the number of receives the engine is aiming to keep in flight
+   *
+   * @return the current target
+   */
+  public int target() {
+    return target;
+  }
+
+  private void fill() {
+    while (running) {
+      int current = inFlight.get();
+      // Each receive in flight may already bring a full batch
+      if (current >= target || requested.get() <= (long) current * MAX_BATCH_SIZE) {
+        return;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        receive();
+      }
+    }
+  }
+
+  private void receive() {
+    QueueManager.getAsync(queueUrl, MAX_BATCH_SIZE, LONG_POLL_SECONDS)
+      .whenComplete((msgs, err) -> {
+        inFlight.decrementAndGet();
+        if (err != null) {
+          running = false;
+          errorHandler.accept(err);
+          return;
+        }
+        adapt(msgs.size());
+        if (!msgs.isEmpty()) {
+          requested.accumulateAndGet(msgs.size(), (current, delivered) ->
+            current == Long.MAX_VALUE ? current : Math.max(0, current - delivered));
+          consumer.accept(msgs);
+        }
+        fill();
+      });
+  }
+
+  private void adapt(int batchSize) {
+    if (batchSize >= MAX_BATCH_SIZE) {
+      target = Math.min(maxPollers, target + 1);
+      sampleBacklog();
+    } else if (batchSize == 0) {
+      // Idle queue: a single long poll is enough
+      target = 1;
+    } else {
+      target = Math.max(1, target - 1);
+    }
+  }
+
+  private void sampleBacklog() {
+    long now = System.currentTimeMillis();
+    if (maxPollers == 1 || now - lastBacklogSample < BACKLOG_SAMPLE_INTERVAL_MS) {
+      return;
+    }
+    lastBacklogSample = now;
+    QueueManager.getApproximateNumberOfMessagesAsync(queueUrl)
+      .whenComplete((backlog, err) -> {
+        if (err != null || !running) {
+          return;
+        }
+        // One receive per full batch waiting on the queue
+        int wanted = (backlog + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE;
+        target = Math.max(1, Math.min(maxPollers, wanted));
+        fill();
+      });
+  }
+}
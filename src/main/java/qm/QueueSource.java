@@ -0,0 +1,116 @@
+package qm;
+
+import software.amazon.awssdk.services.sqs.model.Message;
+
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.function.Consumer;
+
+/************************************************************************\
+ * Reactive, demand-driven source of SQS messages.
+ *
+ * Receives are only issued while subscribers have requested messages,
+ * so the queue is never polled faster than the messages are consumed.
+ * At most one batch per receive in flight is buffered beyond the
+ * requested amount.
+\************************************************************************/
+public class QueueSource {
+
+  /**
+   * What a consumer stage does when its subscriber cannot keep up
+   */
+  public enum Overflow {
+    // Buffer up to N elements then slow the upstream down (backpressure)
+    BUFFER,
+    // Buffer up to N elements then discard the oldest one
+    DROP_OLDEST,
+    // Only keep the latest element
+    LATEST;
+
+    /**
+     * Parse an overflow strategy name, case insensitive
+     *
+     * @param name Name of the strategy
+     * @param defaultValue Strategy used when the name is unknown
+     * @return the strategy
+     */
+    public static Overflow parse(String name, Overflow defaultValue) {
+      try {
+        return valueOf(name.trim().toUpperCase());
+      } catch (Exception e) {
+        System.out.println("'" + name + "' is not a valid overflow strategy! Using the default value: " + defaultValue);
+        return defaultValue;
+      }
+    }
+
+    /**
+     * Decouple the given flux from its subscriber with a bounded stage
+     * applying this strategy. Elements are delivered on the scheduler provided.
+     *
+     * @param flux Upstream flux
+     * @param size Maximum number of elements buffered
+     * @param scheduler Scheduler the subscriber is called on
+     * @return the bounded flux
+     */
+    public <T> Flux<T> apply(Flux<T> flux, int size, Scheduler scheduler) {
+      return apply(flux, size, scheduler, dropped -> {});
+    }
+
+    /**
+     * Decouple the given flux from its subscriber with a bounded stage
+     * applying this strategy. Elements are delivered on the scheduler provided.
+     *
+     * @param flux Upstream flux
+     * @param size Maximum number of elements buffered
+     * @param scheduler Scheduler the subscriber is called on
+     * @param onDropped Callback receiving the elements discarded by DROP_OLDEST
+     *                  (the ones LATEST replaces are not reported)
+     * @return the bounded flux
+     */
+    public <T> Flux<T> apply(Flux<T> flux, int size, Scheduler scheduler, Consumer<? super T> onDropped) {
+      switch (this) {
+        case DROP_OLDEST:
+          return flux
+            .onBackpressureBuffer(size, onDropped, BufferOverflowStrategy.DROP_OLDEST)
+            .publishOn(scheduler, 1);
+        case LATEST:
+          return flux
+            .onBackpressureLatest()
+            .publishOn(scheduler, 1);
+        default:
+          return flux
+            .publishOn(scheduler, size);
+      }
+    }
+  }
+
+  // Utility class
+  private QueueSource() {}
+
+  /**
+   * Create a cold flux of the messages received from the queue provided.
+   * Each subscription starts its own poller, stopped when cancelled.
+   * Messages are deleted from the queue once received.
+   *
+   * @param queueUrl URL of the queue to be polled
+   * @param maxPollers maximum number of receives in flight
+   * @return the flux of messages
+   */
+  public static Flux<Message> messages(String queueUrl, int maxPollers) {
+    return Flux.create(sink -> {
+      QueuePoller poller = new QueuePoller(queueUrl,
+                                           maxPollers,
+                                           msgs -> msgs.forEach(sink::next),
+                                           sink::error);
+      poller.limitToRequested();
+      // Further requests are forwarded as they come. The ones issued on subscription are read back.
+      sink.onRequest(poller::request);
+      sink.onDispose(poller::stop);
+      poller.start();
+      poller.request(sink.requestedFromDownstream());
+    }, FluxSink.OverflowStrategy.BUFFER);
+  }
+}
@@ -0,0 +1,100 @@
+package qm;
+
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchRequestEntry;
+import software.amazon.awssdk.services.sqs.model.DeleteMessageBatchResponse;
+import software.amazon.awssdk.services.sqs.model.Message;
+import software.amazon.awssdk.services.sqs.model.QueueAttributeName;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/************************************************************************\
+ * Queue and topic operations QueueManager relies on.
+ *
+ * AwsTransport calls Amazon SQS and SNS; MemoryTransport is an in-process
+ * stand-in for offline tests. Selected with QM_TRANSPORT (aws|memory).
+ * Messages are always received with all their system attributes, and
+ * topics always deliver raw messages to the subscribed queues.
+\************************************************************************/
+public interface QueueTransport {
+
+  /**
+   * Create a queue, or get the URL of the existing queue with that name
+   *
+   * @param queueName Name of the queue
+   * @param attributes Attributes of the queue, e.g. RedrivePolicy
+   * @return the queue's URL
+   */
+  String createQueue(String queueName, Map<QueueAttributeName, String> attributes);
+
+  Map<QueueAttributeName, String> getQueueAttributes(String queueUrl, QueueAttributeName... names);
+
+  CompletableFuture<Map<QueueAttributeName, String>> getQueueAttributesAsync(String queueUrl, QueueAttributeName... names);
+
+  void setQueueAttributes(String queueUrl, Map<QueueAttributeName, String> attributes);
+
+  void deleteQueue(String queueUrl);
+
+  /**
+   * Put a message into a queue
+   *
+   * @param queueUrl Target queue's URL
+   * @param messageBody Content to be sent
+   * @param delaySeconds Time before the message can be received, null for the queue's default
+   * @return the message id generated
+   */
+  String sendMessage(String queueUrl, String messageBody, Integer delaySeconds);
+
+  /**
+   * Receive messages from a queue, blocking until some arrive or the wait
+   * time is over. They stay invisible to the other receives for the queue's
+   * visibility timeout, until deleted.
+   *
+   * @param queueUrl Queue's URL
+   * @param maxNumberOfMessages Maximum number of messages (1 to 10)
+   * @param waitTimeSeconds Maximum time to wait for a message (long poll)
+   * @return the messages received, empty if none
+   */
+  List<Message> receiveMessages(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds);
+
+  /**
+   * Receive messages from a queue. They stay invisible to the other receives
+   * for the queue's visibility timeout, until deleted.
+   *
+   * @param queueUrl Queue's URL
+   * @param maxNumberOfMessages Maximum number of messages (1 to 10)
+   * @param waitTimeSeconds Maximum time to wait for a message (long poll)
+   * @return a completable future of the messages received, empty if none
+   */
+  CompletableFuture<List<Message>> receiveMessagesAsync(String queueUrl, int maxNumberOfMessages, int waitTimeSeconds);
+
+  /**
+   * Delete received messages, up to 10
+   *
+   * @param queueUrl Queue's URL
+   * @param entries Receipt handles of the messages, with ids unique within the request
+   * @return a completable future of the entries deleted and failed
+   */
+  CompletableFuture<DeleteMessageBatchResponse> deleteMessageBatchAsync(String queueUrl, List<DeleteMessageBatchRequestEntry> entries);
+
+  /**
+   * Subscribe a queue to a topic, with raw message delivery
+   *
+   * @param topicArn Topic's ARN
+   * @param queueArn Queue's ARN
+   * @return the subscription's ARN
+   */
+  String subscribe(String topicArn, String queueArn);
+
+  void unsubscribe(String subscriptionArn);
+
+  /**
+   * Publish a message to every queue subscribed to a topic
+   *
+   * @param topicArn Topic's ARN
+   * @param message Content to be published
+   * @return the message id generated
+   */
+  String publish(String topicArn, String message);
+}
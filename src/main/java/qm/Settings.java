@@ -0,0 +1,67 @@
+package qm;
+
+/************************************************************************\
+ * Utility class to read tuning parameters.
+ * A JVM system property (-DNAME=value) takes precedence over the
+ * environment variable with the same name.
+\************************************************************************/
+public class Settings {
+
+  // Utility class
+  private Settings() {}
+
+  /**
+   * Read a textual setting
+   *
+   * @param name Name of the system property / environment variable
+   * @param defaultValue Value used when the setting is absent
+   * @return The setting's value
+   */
+  public static String get(String name, String defaultValue) {
+    String value = System.getProperty(name);
+    if (value == null) {
+      value = System.getenv(name);
+    }
+    return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+  }
+
+  /**
+   * Read an integer setting
+   *
+   * @param name Name of the system property / environment variable
+   * @param defaultValue Value used when the setting is absent or invalid
+   * @return The setting's value
+   */
+  public static int getInt(String name, int defaultValue) {
+    String value = get(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      System.out.println("'" + value + "' is not a valid integer number for " + name + "! Using the default value: " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Read a decimal setting
+   *
+   * @param name Name of the system property / environment variable
+   * @param defaultValue Value used when the setting is absent or invalid
+   * @return The setting's value
+   */
+  public static double getDouble(String name, double defaultValue) {
+    String value = get(name, null);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      System.out.println("'" + value + "' is not a valid number for " + name + "! Using the default value: " + defaultValue);
+      return defaultValue;
+    }
+  }
+}
@@ -4,6 +4,7 @@
 	var log = console.log;
 	var map;
 	var lab1markers = new Map();
+	var tileMarkers = new Map();
 	var lab2markers = new Map();
 
 	var colors = ['#ff0000', '#ffff00', '#00ff00'];
@@ -36,20 +37,30 @@
 	  log('Closed connection');
 	}, false);
 
+	// Binary frame types (see map.Frames)
+	var MAP_KEY = 0, HEATMAP = 1, VEHICLES = 2, VEHICLE_NAMES = 3, VIEWPORT = 4, TILES = 5;
+	var SNAPSHOT = 0x01;
+	var HEADER_SIZE = 6;
+	// Coordinates are fixed-point: degrees * SCALE
+	var SCALE = 1000000;
+	// Vehicle names by id
+	var vehicleNames = new Map();
+	var utf8 = new TextDecoder('utf-8');
+
 	socket.onmessage = function (event) {
 		
-		var message = readPacket( event );
-		//log('Received Message: ' + message);
-
-		var fields = message.split(',');
+		var packet = readPacket( event );
+		//log('Received frame type ' + packet.type + ' with ' + packet.count + ' records');
 
-		if (fields == '') //  received message is empty
+		if (packet == null) //  received message is empty
 			return;			
 		
-		var messageType = fields[0];
-		if (messageType == 'm0') { // Config Map token
+		var view = packet.view;
+		var pos = HEADER_SIZE;
+		var i;
+		if (packet.type == MAP_KEY) { // Config Map token
 			//Add your Unwired Maps Access Token here (not the API token!)
-			unwired.key = mapboxgl.accessToken = fields[1];
+			unwired.key = mapboxgl.accessToken = utf8.decode(new Uint8Array(view.buffer, pos, packet.count));
 			//Define the map and configure the map's theme
 			map = new mapboxgl.Map({
 				container: 'map',
@@ -59,66 +70,141 @@
 				center: [-1.510477, 52.4081812] 	// Coventry
 	//			center: [-0.213736,51.523524]		// London
 			});
+			// Only receive what is shown
+			map.on('load', sendViewport);
+			map.on('moveend', sendViewport);
 		}			
-		else if (messageType == 'm1') { //LAB 1 message received
-			var keyMarker = fields[1] + fields[2];
-
-			if (lab1markers.has(keyMarker)){
-				// change color if the marker already exists
-				lab1markers.get(keyMarker).style.backgroundColor = colors[fields[3]];
-			} else {
-				// create a DOM element for the marker
-				var el = document.createElement('div');
-				el.className = 'circle';
-				el.style.backgroundColor = colors[fields[3] - 1];
-
-				lab1markers.set(keyMarker,el);
-
-				// add marker to map
-				new mapboxgl.Marker(el)
-					.setLngLat([fields[2],fields[1]])
-					.addTo(map);
+		else if (packet.type == HEATMAP) { //LAB 1 message received
+			if (packet.flags & SNAPSHOT) // back to the cells themselves
+				clearMarkers(tileMarkers);
+			for (i = 0; i < packet.count; i++, pos += 9) {
+				updateCell(view.getInt32(pos), view.getInt32(pos + 4), view.getUint8(pos + 8));
+			}
+		} 
+		else if (packet.type == TILES) { //LAB 1 aggregated areas received
+			if (packet.flags & SNAPSHOT) { // new level of detail
+				clearMarkers(lab1markers);
+				clearMarkers(tileMarkers);
+			}
+			for (i = 0; i < packet.count; i++, pos += 13) {
+				updateTile(view.getInt32(pos), view.getInt32(pos + 4), view.getInt32(pos + 8), view.getUint8(pos + 12));
+			}
+		} 
+		else if (packet.type == VEHICLE_NAMES) { //LAB 2 vehicles introduced
+			for (i = 0; i < packet.count; i++) {
+				var length = view.getUint16(pos + 2);
+				vehicleNames.set(view.getUint16(pos), utf8.decode(new Uint8Array(view.buffer, pos + 4, length)));
+				pos += 4 + length;
 			}
 		} 
-		else if (messageType == 'm2') { //LAB 2 message received
+		else if (packet.type == VEHICLES) { //LAB 2 message received
+			for (i = 0; i < packet.count; i++, pos += 10) {
+				updateVehicle(view.getUint16(pos), view.getInt32(pos + 2), view.getInt32(pos + 6));
+			}
+		} 
+	};
+	
+	var updateCell = function(lat, lon, level) {
+		var keyMarker = lat + ',' + lon;
 
+		if (lab1markers.has(keyMarker)){
+			// change color if the marker already exists
+			lab1markers.get(keyMarker).getElement().style.backgroundColor = colors[level - 1];
+		} else {
 			// create a DOM element for the marker
 			var el = document.createElement('div');
-			el.className = 'markerVehicle';
-			
-			el.addEventListener('click', function() {
-				window.alert(fields[1]);
-			});
-
-			// Remove the marker if it already exists
-			if (lab2markers.has(fields[1]))
-				lab2markers.get(fields[1]).remove();
+			el.className = 'circle';
+			el.style.backgroundColor = colors[level - 1];
 
 			// add marker to map
-			var marker = new mapboxgl.Marker(el)
-				.setLngLat([fields[3], fields[2]])
-				.addTo(map);
-			
-			// store the marker by vehicle id
-			lab2markers.set(fields[1], marker);
-		} 
-	};
+			lab1markers.set(keyMarker, new mapboxgl.Marker(el)
+				.setLngLat([lon / SCALE, lat / SCALE])
+				.addTo(map));
+		}
+	}
+
+	var updateTile = function(south, west, side, level) {
+		var keyMarker = side + ':' + south + ',' + west;
+
+		if (tileMarkers.has(keyMarker)){
+			tileMarkers.get(keyMarker).getElement().style.backgroundColor = colors[level - 1];
+		} else {
+			var el = document.createElement('div');
+			el.className = 'tile';
+			el.style.backgroundColor = colors[level - 1];
+
+			// add marker at the centre of the tile
+			tileMarkers.set(keyMarker, new mapboxgl.Marker(el)
+				.setLngLat([(west + side / 2) / SCALE, (south + side / 2) / SCALE])
+				.addTo(map));
+		}
+	}
+
+	var clearMarkers = function(markers) {
+		markers.forEach(function(marker) {
+			marker.remove();
+		});
+		markers.clear();
+	}
+
+	var updateVehicle = function(id, lat, lon) {
+		// create a DOM element for the marker
+		var el = document.createElement('div');
+		el.className = 'markerVehicle';
+		
+		el.addEventListener('click', function() {
+			window.alert(vehicleNames.has(id) ? vehicleNames.get(id) : id);
+		});
+
+		// Remove the marker if it already exists
+		if (lab2markers.has(id))
+			lab2markers.get(id).remove();
+
+		// add marker to map
+		var marker = new mapboxgl.Marker(el)
+			.setLngLat([lon / SCALE, lat / SCALE])
+			.addTo(map);
+		
+		// store the marker by vehicle id
+		lab2markers.set(id, marker);
+	}
 	
+	var sendViewport = function() {
+		if (socket.readyState != WebSocket.OPEN)
+			return;
+		var bounds = map.getBounds();
+		var west = bounds.getWest(), east = bounds.getEast();
+		if (east - west >= 360) { // the whole world is shown
+			west = -180;
+			east = 180;
+		} else { // back to [-180, 180], west > east when crossing the antimeridian
+			west = ((west + 540) % 360) - 180;
+			east = ((east + 540) % 360) - 180;
+		}
+		// Frame: header | i32 south, i32 west, i32 north, i32 east, u8 zoom
+		var view = new DataView(new ArrayBuffer(HEADER_SIZE + 17));
+		view.setUint8(0, VIEWPORT);
+		view.setUint8(1, 0);
+		view.setUint32(2, 1);
+		view.setInt32(HEADER_SIZE, Math.floor(bounds.getSouth() * SCALE));
+		view.setInt32(HEADER_SIZE + 4, Math.floor(west * SCALE));
+		view.setInt32(HEADER_SIZE + 8, Math.ceil(bounds.getNorth() * SCALE));
+		view.setInt32(HEADER_SIZE + 12, Math.ceil(east * SCALE));
+		view.setUint8(HEADER_SIZE + 16, Math.round(map.getZoom()));
+		socket.send(view.buffer);
+	}
+
 	var readPacket = function(event){
-		return String.fromCharCode.apply(null, new Uint8Array(event.data));
-		// reading protobuf
-//		var reader = protobuf.Reader.create(new Uint8Array(event.data));
-//		while (reader.pos < reader.len) {
-//			var tag = reader.uint32();
-//			switch (/*id*/ tag >>> 3) {
-//				case 1:
-//					return reader.string();
-//					break;
-//				default:
-//					reader.skipType(/*wireType*/ tag & 7);
-//					break;
-//			}
-//		}
+		if (event.data.byteLength < HEADER_SIZE)
+			return null;
+		// Frame header: u8 type | u8 flags | u32 count
+		var view = new DataView(event.data);
+		return {
+			type: view.getUint8(0),
+			flags: view.getUint8(1),
+			count: view.getUint32(2),
+			view: view
+		};
 	}	
 
 